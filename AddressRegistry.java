@@ -0,0 +1,198 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of the public keys outputs are paid to. Each distinct key is interned once and given
+ * a dense int id, and its X.509 encoding is computed once and kept, so stores can hold a 4-byte id
+ * in place of a key, and keys decoded from bytes resolve to the instance already known for that
+ * encoding.
+ *
+ * Keys are equal when their encodings are equal. Lookups do not lock; interning a new key does.
+ * Ids are never reused and entries are never dropped, since stores hold ids in place of keys and
+ * an evicted id could no longer be resolved. Only the stores that hold ids therefore intern, on
+ * {@code put} and when reading back what they wrote, so the registry grows with the addresses
+ * that are stored, not with every address seen in a proposed transaction.
+ *
+ * {@code getEncoded(PublicKey)} and {@code decode} serve everyone else, such as signing payloads,
+ * the signature cache and {@code TxCodec}, without registering anything: a key that is not
+ * registered is looked up in a small direct-mapped cache of {@value #RECENT} recently used keys
+ * per direction, which bounds the memory they use. The arrays returned by {@code getEncoded} are
+ * shared and must not be modified.
+ */
+public class AddressRegistry {
+
+    private static final AddressRegistry SHARED = new AddressRegistry();
+
+    /** Slots in each cache of recently used unregistered keys; a power of two */
+    private static final int RECENT = 1024;
+
+    private final ConcurrentHashMap<PublicKey, Integer> ids = new ConcurrentHashMap<PublicKey, Integer>();
+    private final ConcurrentHashMap<Encoding, Integer> idsByEncoding = new ConcurrentHashMap<Encoding, Integer>();
+
+    /** Keys and encodings by id; replaced by larger copies under the lock when full */
+    private volatile PublicKey[] keys = new PublicKey[64];
+    private volatile byte[][] encodings = new byte[64][];
+    private volatile int size;
+
+    /** Recently used unregistered keys, by slot of their key and of their encoding */
+    private final Recent[] recentByKey = new Recent[RECENT];
+    private final Recent[] recentByEncoding = new Recent[RECENT];
+
+    /** Creates an empty registry */
+    public AddressRegistry() {
+    }
+
+    /**
+     * @return the registry used by the UTXO stores, which holds every address any of them has
+     *         stored until the process exits
+     */
+    public static AddressRegistry getShared() {
+        return SHARED;
+    }
+
+    /** @return the id of {@code key}, registering it if it is new */
+    public int intern(PublicKey key) {
+        Integer id = ids.get(key);
+        return id != null ? id : register(key, key.getEncoded());
+    }
+
+    /**
+     * @return the id of the RSA key with X.509 encoding {@code encoded}, decoding and registering
+     *         it if it is new
+     * @throws IllegalArgumentException if {@code encoded} is not a valid X.509 encoded RSA key
+     */
+    public int intern(byte[] encoded) {
+        Integer id = idsByEncoding.get(new Encoding(encoded));
+        if (id != null)
+            return id;
+        byte[] copy = Arrays.copyOf(encoded, encoded.length);
+        try {
+            PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(copy));
+            return register(key, copy);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("malformed address", e);
+        }
+    }
+
+    /** @return the registered instance equal to {@code key}, registering {@code key} if it is new */
+    public PublicKey canonical(PublicKey key) {
+        return get(intern(key));
+    }
+
+    /** @return the key with id {@code id} */
+    public PublicKey get(int id) {
+        if (id < 0 || id >= size)
+            throw new IllegalArgumentException("unknown address id " + id);
+        return keys[id];
+    }
+
+    /** @return the X.509 encoding of the key with id {@code id}; must not be modified */
+    public byte[] getEncoded(int id) {
+        if (id < 0 || id >= size)
+            throw new IllegalArgumentException("unknown address id " + id);
+        return encodings[id];
+    }
+
+    /**
+     * @return the X.509 encoding of {@code key}, without registering it; must not be modified
+     */
+    public byte[] getEncoded(PublicKey key) {
+        Integer id = ids.get(key);
+        if (id != null)
+            return getEncoded(id);
+        int slot = slot(key.hashCode());
+        Recent recent = recentByKey[slot];
+        if (recent != null && (recent.key == key || recent.key.equals(key)))
+            return recent.encoded;
+        byte[] encoded = key.getEncoded();
+        recentByKey[slot] = new Recent(key, encoded);
+        return encoded;
+    }
+
+    /**
+     * @return the RSA key with X.509 encoding {@code encoded}: the registered instance if there is
+     *         one, or else one decoded without registering it
+     * @throws IllegalArgumentException if {@code encoded} is not a valid X.509 encoded RSA key
+     */
+    public PublicKey decode(byte[] encoded) {
+        Integer id = idsByEncoding.get(new Encoding(encoded));
+        if (id != null)
+            return get(id);
+        int slot = slot(Arrays.hashCode(encoded));
+        Recent recent = recentByEncoding[slot];
+        if (recent != null && Arrays.equals(recent.encoded, encoded))
+            return recent.key;
+        byte[] copy = Arrays.copyOf(encoded, encoded.length);
+        try {
+            PublicKey key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(copy));
+            recentByEncoding[slot] = new Recent(key, copy);
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("malformed address", e);
+        }
+    }
+
+    /** @return the number of registered keys */
+    public int size() {
+        return size;
+    }
+
+    private synchronized int register(PublicKey key, byte[] encoded) {
+        Integer existing = idsByEncoding.get(new Encoding(encoded));
+        if (existing != null) {
+            ids.putIfAbsent(key, existing);
+            return existing;
+        }
+        int id = size;
+        if (id == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * id);
+            encodings = Arrays.copyOf(encodings, 2 * id);
+        }
+        keys[id] = key;
+        encodings[id] = encoded;
+        // publishing size makes the entries visible to get before the maps hand out the id
+        size = id + 1;
+        idsByEncoding.put(new Encoding(encoded), id);
+        ids.put(key, id);
+        return id;
+    }
+
+    private static int slot(int hash) {
+        int h = hash * 0x9e3779b9;
+        return (h ^ h >>> 16) & (RECENT - 1);
+    }
+
+    /** A recently used unregistered key and its encoding; immutable, so slots can be read racily */
+    private static final class Recent {
+        final PublicKey key;
+        final byte[] encoded;
+
+        Recent(PublicKey key, byte[] encoded) {
+            this.key = key;
+            this.encoded = encoded;
+        }
+    }
+
+    /** Byte array compared by content, as a map key */
+    private static final class Encoding {
+        private final byte[] bytes;
+        private final int hashCode;
+
+        Encoding(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof Encoding && Arrays.equals(bytes, ((Encoding) other).bytes);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Fixed-point amounts: a value in coins held as a {@code long} count of the smallest unit,
+ * {@value #UNITS_PER_COIN} units per coin. Sums and comparisons of units are exact, unlike the
+ * {@code double} values of {@code Transaction.Output}, and arrays of them pack into primitive
+ * storage.
+ *
+ * {@code toUnits} and {@code toCoins} convert to and from the {@code double} API. Conversion rounds
+ * to the nearest unit, except that a negative value never rounds to zero, so a negative output
+ * stays detectable as negative. {@code toUnitsExact} instead rejects a value that is not a whole
+ * number of units, that is one {@code toCoins} does not give back exactly, and {@code toUnitsFloor}
+ * rounds down, so neither can turn a sum of values into more than it was. Values that are not
+ * finite or do not fit in a {@code long} of units are rejected, as are sums that overflow.
+ */
+public final class Amounts {
+
+    /** Number of units in one coin */
+    public static final long UNITS_PER_COIN = 100_000_000L;
+
+    /** Largest magnitude in coins that converts to units without overflow */
+    private static final double MAX_COINS = (double) Long.MAX_VALUE / UNITS_PER_COIN;
+
+    private Amounts() {
+    }
+
+    /**
+     * @return {@code coins} in units, rounded to the nearest unit but never from negative to zero
+     * @throws ArithmeticException if {@code coins} is NaN, infinite or out of range
+     */
+    public static long toUnits(double coins) {
+        if (!(Math.abs(coins) < MAX_COINS))
+            throw new ArithmeticException("amount out of range: " + coins);
+        long units = Math.round(coins * UNITS_PER_COIN);
+        return units == 0 && coins < 0 ? -1 : units;
+    }
+
+    /**
+     * @return {@code coins} in units
+     * @throws ArithmeticException if {@code coins} is not a whole number of units, or is NaN,
+     *         infinite or out of range
+     */
+    public static long toUnitsExact(double coins) {
+        long units = toUnits(coins);
+        if (toCoins(units) != coins)
+            throw new ArithmeticException("not a whole number of units: " + coins);
+        return units;
+    }
+
+    /**
+     * @return the largest number of units worth at most {@code coins}
+     * @throws ArithmeticException if {@code coins} is NaN, infinite or out of range
+     */
+    public static long toUnitsFloor(double coins) {
+        long units = toUnits(coins);
+        return toCoins(units) > coins ? units - 1 : units;
+    }
+
+    /** @return {@code units} as a value in coins */
+    public static double toCoins(long units) {
+        return (double) units / UNITS_PER_COIN;
+    }
+
+    /**
+     * @return {@code a + b}
+     * @throws ArithmeticException if the sum overflows
+     */
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    /**
+     * @return the sum of the values of {@code outputs} in units
+     * @throws ArithmeticException if a value is out of range or the sum overflows
+     */
+    public static long sum(Iterable<Transaction.Output> outputs) {
+        long sum = 0;
+        for (Transaction.Output output : outputs)
+            sum = Math.addExact(sum, toUnits(output.value));
+        return sum;
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * Child-pays-for-parent selection for {@code MaxFeeTxHandler}: ranks every transaction of the
+ * epoch by the fee of its package, itself plus its ancestors in the epoch that are not accepted
+ * yet, and repeatedly accepts the whole package with the highest positive fee, ancestors first. A
+ * low-fee parent is thereby chosen as soon as its child makes the pair worth it, instead of
+ * waiting for its own fee to come up.
+ *
+ * The epoch is reduced to a {@code CandidateGraph}. A candidate whose package claims one output
+ * twice can never be accepted and is dropped. Package fees live in a max-heap with version-stamped
+ * entries, as in {@code GreedyFeeSelector}. Accepting a package drops every candidate claiming one
+ * of the outputs it spent, together with their descendants, and re-ranks the descendants whose
+ * packages it shrank. Ties are broken by batch position.
+ *
+ * A package may hold at most {@code maxAncestors} ancestors, 25 by default. A candidate with more
+ * unaccepted ancestors is not ranked until enough of them have been accepted on their own, so a
+ * profitable transaction at the end of a longer chain of unprofitable ones is never reached. In
+ * exchange no ancestor set is ever materialized: ranking a candidate walks at most the limit of
+ * its ancestors, and after an acceptance only the descendants within the limit plus one
+ * generations are re-ranked, since deeper ones are still over the limit. A chain of n
+ * transactions therefore costs O(n * limit^2) rather than O(n^2).
+ */
+public class AncestorPackageSelector {
+
+    private final UTXOPool utxoPool;
+    private final TxValidator validator;
+    private int maxAncestors = 25;
+
+    /** Creates a selector that validates with {@code validator} and spends from {@code utxoPool} */
+    public AncestorPackageSelector(UTXOPool utxoPool, TxValidator validator) {
+        this.utxoPool = utxoPool;
+        this.validator = validator;
+    }
+
+    /** Sets the number of unaccepted ancestors a package may hold, 25 by default */
+    public void setMaxAncestors(int maxAncestors) {
+        if (maxAncestors < 0)
+            throw new IllegalArgumentException("negative ancestor limit");
+        this.maxAncestors = maxAncestors;
+    }
+
+    /**
+     * Selects from {@code possibleTxs}, applying each accepted transaction to the pool and
+     * recording it in {@code undo} if that is not null.
+     *
+     * @return the accepted transactions in the order they were applied, parents before children
+     */
+    public Transaction[] select(Transaction[] possibleTxs, UTXOUndo undo) {
+        CandidateGraph graph = new CandidateGraph(possibleTxs, utxoPool, validator);
+        Packages packages = new Packages(graph);
+        for (int c = 0; c < graph.size(); c++)
+            packages.rank(c);
+
+        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+        ArrayList<Integer> added = new ArrayList<>();
+        while (!packages.heap.isEmpty()) {
+            Entry best = packages.heap.poll();
+            int c = best.candidate;
+            if (packages.accepted[c] || packages.dropped[c] || best.version != packages.version[c])
+                continue;
+
+            // ancestors are numbered before their descendants, so this applies parents first
+            packages.collect(c);
+            added.clear();
+            added.addAll(packages.ancestors);
+            Collections.sort(added);
+            added.add(c);
+            for (int a : added) {
+                packages.accepted[a] = true;
+                acceptedTxs.add(graph.get(a));
+                utxoPool.applyTx(graph.get(a), undo);
+            }
+            for (int a : added) {
+                for (int k : graph.claims(a)) {
+                    for (int rival : graph.claimants(k)) {
+                        if (rival != a)
+                            packages.drop(rival);
+                    }
+                }
+            }
+            packages.rankDescendants(added);
+        }
+        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+    }
+
+    /** The packages of one epoch as transactions are accepted and dropped */
+    private final class Packages {
+        private final CandidateGraph graph;
+        final boolean[] accepted;
+        final boolean[] dropped;
+        final int[] version;
+        final PriorityQueue<Entry> heap = new PriorityQueue<>();
+        /** unaccepted ancestors of the candidate last passed to {@code collect} */
+        final ArrayList<Integer> ancestors = new ArrayList<>();
+
+        /** per candidate and per conflict set, the walk that last visited it */
+        private final int[] mark;
+        private final int[] setMark;
+        private int stamp;
+        private final ArrayList<Integer> stack = new ArrayList<>();
+        private final ArrayList<Integer> level = new ArrayList<>();
+        private final ArrayList<Integer> next = new ArrayList<>();
+
+        Packages(CandidateGraph graph) {
+            this.graph = graph;
+            int n = graph.size();
+            accepted = new boolean[n];
+            dropped = new boolean[n];
+            version = new int[n];
+            mark = new int[n];
+            setMark = new int[graph.numConflictSets()];
+        }
+
+        /**
+         * Collects the unaccepted ancestors of {@code c} into {@code ancestors}.
+         *
+         * @return false, leaving {@code ancestors} incomplete, if there are more than
+         *         {@code maxAncestors} of them
+         */
+        boolean collect(int c) {
+            ancestors.clear();
+            stack.clear();
+            stamp++;
+            stack.add(c);
+            while (!stack.isEmpty()) {
+                int d = stack.remove(stack.size() - 1);
+                for (int p : graph.parents(d)) {
+                    if (mark[p] == stamp || accepted[p])
+                        continue;
+                    if (ancestors.size() == maxAncestors)
+                        return false;
+                    mark[p] = stamp;
+                    ancestors.add(p);
+                    stack.add(p);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Re-ranks {@code c} by its current package: queues it if the package fits the limit and
+         * pays a positive fee, and drops it if the package claims some output twice
+         */
+        void rank(int c) {
+            version[c]++;
+            if (!collect(c))
+                return;
+            stamp++;
+            long fee = graph.fee(c);
+            boolean conflicting = false;
+            for (int k : graph.claims(c))
+                setMark[k] = stamp;
+            for (int a : ancestors) {
+                fee += graph.fee(a);
+                for (int k : graph.claims(a)) {
+                    conflicting |= setMark[k] == stamp;
+                    setMark[k] = stamp;
+                }
+            }
+            if (conflicting)
+                drop(c);
+            else if (fee > 0)
+                heap.add(new Entry(fee, graph.position(c), c, version[c]));
+        }
+
+        /**
+         * Re-ranks the descendants of the just accepted {@code added} that are at most
+         * {@code maxAncestors + 1} generations below them; any deeper one still has more than
+         * {@code maxAncestors} unaccepted ancestors on the way.
+         */
+        void rankDescendants(ArrayList<Integer> added) {
+            stamp++;
+            level.clear();
+            level.addAll(added);
+            ArrayList<Integer> reached = new ArrayList<>();
+            for (int depth = 0; depth <= maxAncestors && !level.isEmpty(); depth++) {
+                next.clear();
+                for (int d : level) {
+                    for (int child : graph.children(d)) {
+                        if (mark[child] == stamp || accepted[child] || dropped[child])
+                            continue;
+                        mark[child] = stamp;
+                        next.add(child);
+                        reached.add(child);
+                    }
+                }
+                level.clear();
+                level.addAll(next);
+            }
+            for (int d : reached) {
+                if (!dropped[d])
+                    rank(d);
+            }
+        }
+
+        /** Drops {@code c} and its descendants that are not dropped yet */
+        void drop(int c) {
+            if (dropped[c])
+                return;
+            dropped[c] = true;
+            stack.clear();
+            stack.add(c);
+            while (!stack.isEmpty()) {
+                int d = stack.remove(stack.size() - 1);
+                for (int child : graph.children(d)) {
+                    // the descendants of a dropped candidate are dropped with it
+                    if (!dropped[child]) {
+                        dropped[child] = true;
+                        stack.add(child);
+                    }
+                }
+            }
+        }
+    }
+
+    /** A heap entry, valid only while {@code version} matches the candidate's current version */
+    private static final class Entry implements Comparable<Entry> {
+        final long fee;
+        final int position;
+        final int candidate;
+        final int version;
+
+        Entry(long fee, int position, int candidate, int version) {
+            this.fee = fee;
+            this.position = position;
+            this.candidate = candidate;
+            this.version = version;
+        }
+
+        /** Orders higher package fees first, then lower batch positions */
+        public int compareTo(Entry other) {
+            int c = Long.compare(other.fee, fee);
+            return c != 0 ? c : Integer.compare(position, other.position);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Time-boxed fee-maximizing selection for {@code MaxFeeTxHandler}: returns within a time budget
+ * with the best mutually valid set found by then, however pathological the epoch.
+ *
+ * Validation builds a {@code CandidateGraph} and stops early if the deadline passes, leaving out
+ * the transactions not validated yet. A greedy pass then fills the block by highest fee from the
+ * candidates validated; it is cheap next to validation and always runs to completion, so a block
+ * is returned even when validation used up the whole budget. While time remains, it is refined
+ * by local search: for each candidate left out, the swap that adds it together with
+ * its missing ancestors and evicts the selected transactions they conflict with, and everything
+ * depending on those, is made if it gains fee, followed by a greedy refill of the outputs it
+ * freed. Rounds repeat until none gains or the deadline passes.
+ *
+ * The result is compared to an upper bound on the best total fee: for each output, the highest fee
+ * among the candidates claiming it as their first input, summed over outputs, since at most one
+ * transaction can spend each output. The fee, the bound and whether the deadline cut the work
+ * short are kept for the most recent selection. If validation was cut short, the bound only
+ * covers the transactions validated in time.
+ */
+public class AnytimeFeeSelector {
+
+    private final UTXOPool utxoPool;
+    private final TxValidator validator;
+    private long timeBudgetNanos = 50_000_000L;
+    private long lastFee;
+    private long lastUpperBound;
+    private int lastSwaps;
+    private boolean lastDeadlineHit;
+
+    /** Creates a selector that validates with {@code validator} and spends from {@code utxoPool} */
+    public AnytimeFeeSelector(UTXOPool utxoPool, TxValidator validator) {
+        this.utxoPool = utxoPool;
+        this.validator = validator;
+    }
+
+    /** Sets the time one {@code select} call may take, 50 ms by default */
+    public void setTimeBudget(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative time budget");
+        timeBudgetNanos = millis * 1_000_000L;
+    }
+
+    /** @return the total fee of the most recent selection in {@code Amounts} units */
+    public long getLastFee() {
+        return lastFee;
+    }
+
+    /** @return the upper bound on the total fee of the most recent epoch in {@code Amounts} units */
+    public long getLastUpperBound() {
+        return lastUpperBound;
+    }
+
+    /**
+     * @return the share of the upper bound the most recent selection fell short by, from 0 (proven
+     *         optimal) to 1
+     */
+    public double getLastGap() {
+        return lastUpperBound == 0 ? 0 : (double) (lastUpperBound - lastFee) / lastUpperBound;
+    }
+
+    /** @return the number of improving swaps local search made in the most recent selection */
+    public int getLastSwaps() {
+        return lastSwaps;
+    }
+
+    /** @return true if the deadline passed before the most recent selection finished improving */
+    public boolean lastDeadlineHit() {
+        return lastDeadlineHit;
+    }
+
+    /**
+     * Selects from {@code possibleTxs}, applying each accepted transaction to the pool and
+     * recording it in {@code undo} if that is not null.
+     *
+     * @return the accepted transactions, parents before children
+     */
+    public Transaction[] select(Transaction[] possibleTxs, UTXOUndo undo) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        CandidateGraph graph = new CandidateGraph(possibleTxs, utxoPool, validator, deadline);
+        Selection selection = new Selection(graph, deadline);
+
+        ArrayList<Integer> all = new ArrayList<>();
+        for (int c = 0; c < graph.size(); c++)
+            all.add(c);
+        selection.fill(all);
+        lastSwaps = 0;
+        boolean improved = true;
+        while (improved && !selection.expired())
+            improved = selection.improve();
+
+        lastFee = selection.total;
+        lastUpperBound = Math.max(upperBound(graph), lastFee);
+        lastDeadlineHit = !graph.isComplete() || selection.expired();
+
+        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+        for (int c = 0; c < graph.size(); c++) {
+            if (selection.in[c]) {
+                acceptedTxs.add(graph.get(c));
+                utxoPool.applyTx(graph.get(c), undo);
+            }
+        }
+        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+    }
+
+    /** @return the sum over outputs of the highest fee among candidates claiming it first */
+    private static long upperBound(CandidateGraph graph) {
+        long[] best = new long[graph.numConflictSets()];
+        long sum = 0;
+        for (int c = 0; c < graph.size(); c++) {
+            // a candidate without inputs has no value to pay a fee with
+            if (graph.claims(c).length == 0)
+                continue;
+            int k = graph.claims(c)[0];
+            if (graph.fee(c) > best[k]) {
+                sum += graph.fee(c) - best[k];
+                best[k] = graph.fee(c);
+            }
+        }
+        return sum;
+    }
+
+    /** A mutually valid set of candidates, changed only by moves that keep it valid */
+    private final class Selection {
+        private final CandidateGraph graph;
+        private final long deadline;
+        final boolean[] in;
+        /** selected candidate claiming each conflict set, or -1 */
+        private final int[] owner;
+        long total;
+
+        /** per candidate and per conflict set, the swap that last visited it */
+        private final int[] mark;
+        private final int[] setMark;
+        private int stamp;
+        private long checks;
+        private boolean expired;
+
+        Selection(CandidateGraph graph, long deadline) {
+            this.graph = graph;
+            this.deadline = deadline;
+            in = new boolean[graph.size()];
+            owner = new int[graph.numConflictSets()];
+            Arrays.fill(owner, -1);
+            mark = new int[graph.size()];
+            setMark = new int[graph.numConflictSets()];
+        }
+
+        boolean expired() {
+            if (!expired && (checks++ & 63) == 0)
+                expired = System.nanoTime() > deadline;
+            return expired;
+        }
+
+        private boolean canAdd(int c) {
+            for (int p : graph.parents(c)) {
+                if (!in[p])
+                    return false;
+            }
+            for (int k : graph.claims(c)) {
+                if (owner[k] >= 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private void add(int c) {
+            in[c] = true;
+            total += graph.fee(c);
+            for (int k : graph.claims(c))
+                owner[k] = c;
+        }
+
+        private void remove(int c) {
+            in[c] = false;
+            total -= graph.fee(c);
+            for (int k : graph.claims(c))
+                owner[k] = -1;
+        }
+
+        /**
+         * Adds candidates with a positive fee, highest fee first and then by batch position, while
+         * any of {@code seeds} or of the children of those added can be added. Does not watch the
+         * deadline, so the selection is always filled.
+         */
+        void fill(ArrayList<Integer> seeds) {
+            PriorityQueue<Integer> heap = new PriorityQueue<>((a, b) -> {
+                int cmp = Long.compare(graph.fee(b), graph.fee(a));
+                return cmp != 0 ? cmp : Integer.compare(graph.position(a), graph.position(b));
+            });
+            for (int c : seeds) {
+                if (!in[c] && graph.fee(c) > 0 && canAdd(c))
+                    heap.add(c);
+            }
+            while (!heap.isEmpty()) {
+                int c = heap.poll();
+                if (in[c] || !canAdd(c))
+                    continue;
+                add(c);
+                for (int child : graph.children(c)) {
+                    if (!in[child] && graph.fee(child) > 0 && canAdd(child))
+                        heap.add(child);
+                }
+            }
+        }
+
+        /**
+         * Tries one swap per candidate left out, in candidate order, making each that gains fee
+         *
+         * @return true if any swap was made
+         */
+        boolean improve() {
+            boolean improved = false;
+            ArrayList<Integer> added = new ArrayList<>();
+            ArrayList<Integer> evicted = new ArrayList<>();
+            ArrayList<Integer> freed = new ArrayList<>();
+            for (int c = 0; c < graph.size() && !expired(); c++) {
+                if (in[c] || !swapFor(c, added, evicted))
+                    continue;
+                for (int e : evicted)
+                    remove(e);
+                for (int a : added)
+                    add(a);
+
+                // refill around the outputs the evicted transactions no longer spend
+                freed.clear();
+                for (int e : evicted) {
+                    for (int k : graph.claims(e)) {
+                        for (int rival : graph.claimants(k))
+                            freed.add(rival);
+                    }
+                }
+                for (int a : added) {
+                    for (int child : graph.children(a))
+                        freed.add(child);
+                }
+                fill(freed);
+                lastSwaps++;
+                improved = true;
+            }
+            return improved;
+        }
+
+        /**
+         * Collects in {@code added} candidate {@code c} and its ancestors not selected, and in
+         * {@code evicted} the selected candidates they conflict with and their selected
+         * descendants.
+         *
+         * @return true if the swap is possible and gains fee
+         */
+        private boolean swapFor(int c, ArrayList<Integer> added, ArrayList<Integer> evicted) {
+            added.clear();
+            evicted.clear();
+            stamp++;
+            long gain = 0;
+
+            // the package: c and the ancestors it still needs, each output claimed once
+            ArrayList<Integer> stack = new ArrayList<>();
+            stack.add(c);
+            mark[c] = stamp;
+            while (!stack.isEmpty()) {
+                int a = stack.remove(stack.size() - 1);
+                added.add(a);
+                gain += graph.fee(a);
+                for (int k : graph.claims(a)) {
+                    if (setMark[k] == stamp)
+                        return false;
+                    setMark[k] = stamp;
+                }
+                for (int p : graph.parents(a)) {
+                    if (!in[p] && mark[p] != stamp) {
+                        mark[p] = stamp;
+                        stack.add(p);
+                    }
+                }
+            }
+            if (gain <= 0)
+                return false;
+
+            // selected transactions spending the same outputs, and everything built on them
+            for (int a : added) {
+                for (int k : graph.claims(a)) {
+                    int o = owner[k];
+                    if (o >= 0 && mark[o] != stamp) {
+                        mark[o] = stamp;
+                        stack.add(o);
+                    }
+                }
+            }
+            while (!stack.isEmpty()) {
+                int e = stack.remove(stack.size() - 1);
+                evicted.add(e);
+                gain -= graph.fee(e);
+                for (int child : graph.children(e)) {
+                    if (in[child] && mark[child] != stamp) {
+                        mark[child] = stamp;
+                        stack.add(child);
+                    }
+                }
+            }
+            if (gain <= 0)
+                return false;
+
+            // the package must not need a parent that the swap evicts
+            for (int a : added) {
+                for (int p : graph.parents(a)) {
+                    if (in[p] && mark[p] == stamp)
+                        return false;
+                }
+            }
+            return true;
+        }
+    }
+}
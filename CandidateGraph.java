@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * The transactions of an epoch that some mutually valid selection can contain, checked once up
+ * front, for selectors that search over whole selections instead of accepting one transaction at a
+ * time. Each distinct transaction hash of the batch becomes at most one candidate, taken from its
+ * first position. A candidate is validated against the starting pool plus the outputs of the other
+ * candidates, so it is kept if it is valid once its parents in the epoch are accepted, and dropped
+ * together with its descendants otherwise.
+ *
+ * Candidates are numbered in dependency order, parents before children and otherwise by batch
+ * position, and each records its fee in {@code Amounts} units, the candidates whose outputs it
+ * claims and the conflict sets it belongs to: one set per claimed output, holding every candidate
+ * that claims it. A set of candidates is then mutually valid exactly when it contains the parents
+ * of each of its members and at most one member of each conflict set, and applying it to the pool
+ * in candidate order accepts every member.
+ */
+public class CandidateGraph {
+
+    private final Transaction[] txs;
+    private final int[] positions;
+    private final long[] fees;
+    private final int[][] parents;
+    private final int[][] children;
+    /** conflict set ids of the outputs each candidate claims */
+    private final int[][] claims;
+    /** candidates of each conflict set, in candidate order */
+    private final int[][] claimants;
+    private final boolean complete;
+
+    /**
+     * Builds the candidates of {@code possibleTxs} against {@code utxoPool}, validating each one
+     * with {@code validator}
+     */
+    public CandidateGraph(Transaction[] possibleTxs, UTXOPool utxoPool, TxValidator validator) {
+        this(possibleTxs, utxoPool, validator, Long.MAX_VALUE);
+    }
+
+    /**
+     * Builds the candidates of {@code possibleTxs} like the other constructor, but stops validating
+     * once {@code System.nanoTime()} passes {@code deadline}. The transactions validated by then
+     * still form a consistent graph, every parent of a candidate being one of them, and
+     * {@code isComplete} tells whether any were left out.
+     */
+    public CandidateGraph(Transaction[] possibleTxs, UTXOPool utxoPool, TxValidator validator, long deadline) {
+        final TxGraph graph = new TxGraph(possibleTxs);
+        int groups = graph.numGroups();
+
+        // an output is found in the pool first, then among the outputs of the epoch
+        Function<UTXO, Transaction.Output> outputs = utxo -> {
+            Transaction.Output output = utxoPool.getTxOutput(utxo);
+            if (output != null)
+                return output;
+            int g = graph.groupOf(utxo.getTxHash());
+            if (g < 0)
+                return null;
+            Transaction parent = graph.get(graph.members(g)[0]);
+            int index = utxo.getIndex();
+            return index >= 0 && index < parent.numOutputs() ? parent.getOutput(index) : null;
+        };
+
+        // parent groups of each group, counting only outputs that are not already in the pool
+        int[][] parentGroups = new int[groups][];
+        int[] unresolved = new int[groups];
+        ArrayList<ArrayList<Integer>> childGroups = new ArrayList<>();
+        for (int g = 0; g < groups; g++)
+            childGroups.add(new ArrayList<Integer>());
+        for (int g = 0; g < groups; g++) {
+            ArrayList<Integer> list = new ArrayList<>();
+            for (Transaction.Input in : graph.get(graph.members(g)[0]).getInputs()) {
+                int p = graph.groupOf(in.prevTxHash);
+                if (p < 0 || list.contains(p) || utxoPool.contains(new UTXO(in.prevTxHash, in.outputIndex)))
+                    continue;
+                list.add(p);
+                childGroups.get(p).add(g);
+            }
+            parentGroups[g] = toArray(list);
+            unresolved[g] = list.size();
+        }
+
+        // visit groups in dependency order, lowest position first; a group whose parent was
+        // dropped is never ready, and neither is a group on a cycle
+        int[] candidateOf = new int[groups];
+        ArrayList<Integer> order = new ArrayList<>();
+        PriorityQueue<Integer> ready = new PriorityQueue<>();
+        for (int g = 0; g < groups; g++) {
+            candidateOf[g] = -1;
+            if (unresolved[g] == 0)
+                ready.add(graph.members(g)[0]);
+        }
+        while (!ready.isEmpty() && System.nanoTime() <= deadline) {
+            int position = ready.poll();
+            int g = graph.group(position);
+            if (!validator.validate(graph.get(position), outputs).isValid())
+                continue;
+            candidateOf[g] = order.size();
+            order.add(g);
+            for (int child : childGroups.get(g)) {
+                if (--unresolved[child] == 0)
+                    ready.add(graph.members(child)[0]);
+            }
+        }
+
+        complete = ready.isEmpty();
+        int n = order.size();
+        txs = new Transaction[n];
+        positions = new int[n];
+        fees = new long[n];
+        parents = new int[n][];
+        claims = new int[n][];
+        HashMap<UTXO, Integer> setIds = new HashMap<>();
+        ArrayList<ArrayList<Integer>> setLists = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> childLists = new ArrayList<>();
+        for (int c = 0; c < n; c++) {
+            int g = order.get(c);
+            positions[c] = graph.members(g)[0];
+            txs[c] = graph.get(positions[c]);
+            childLists.add(new ArrayList<Integer>());
+
+            int[] p = parentGroups[g];
+            parents[c] = new int[p.length];
+            for (int k = 0; k < p.length; k++) {
+                parents[c][k] = candidateOf[p[k]];
+                childLists.get(parents[c][k]).add(c);
+            }
+
+            long inputSum = 0;
+            claims[c] = new int[txs[c].numInputs()];
+            for (int k = 0; k < claims[c].length; k++) {
+                Transaction.Input in = txs[c].getInput(k);
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                inputSum = Amounts.add(inputSum, Amounts.toUnitsFloor(outputs.apply(utxo).value));
+                Integer id = setIds.get(utxo);
+                if (id == null) {
+                    id = setLists.size();
+                    setIds.put(utxo, id);
+                    setLists.add(new ArrayList<Integer>());
+                }
+                claims[c][k] = id;
+                setLists.get(id).add(c);
+            }
+            fees[c] = inputSum - Amounts.sum(txs[c].getOutputs());
+        }
+        children = new int[n][];
+        for (int c = 0; c < n; c++)
+            children[c] = toArray(childLists.get(c));
+        claimants = new int[setLists.size()][];
+        for (int k = 0; k < claimants.length; k++)
+            claimants[k] = toArray(setLists.get(k));
+    }
+
+    /** @return false if the deadline passed before every transaction of the epoch was validated */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** @return the number of candidates */
+    public int size() {
+        return txs.length;
+    }
+
+    /** @return the transaction of candidate {@code c} */
+    public Transaction get(int c) {
+        return txs[c];
+    }
+
+    /** @return the batch position candidate {@code c} was taken from */
+    public int position(int c) {
+        return positions[c];
+    }
+
+    /** @return the fee of candidate {@code c} in {@code Amounts} units, never negative */
+    public long fee(int c) {
+        return fees[c];
+    }
+
+    /** @return the candidates whose outputs candidate {@code c} claims; do not modify */
+    public int[] parents(int c) {
+        return parents[c];
+    }
+
+    /** @return the candidates claiming an output of candidate {@code c}; do not modify */
+    public int[] children(int c) {
+        return children[c];
+    }
+
+    /** @return the conflict sets candidate {@code c} belongs to, one per input; do not modify */
+    public int[] claims(int c) {
+        return claims[c];
+    }
+
+    /** @return the number of conflict sets, one per distinct output claimed by a candidate */
+    public int numConflictSets() {
+        return claimants.length;
+    }
+
+    /** @return the candidates of conflict set {@code k}, in candidate order; do not modify */
+    public int[] claimants(int k) {
+        return claimants[k];
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = list.get(i);
+        return a;
+    }
+}
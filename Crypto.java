@@ -6,6 +6,36 @@ import java.security.SignatureException;
 
 public class Crypto {
 
+    /** Outcome of a signature check performed by {@code Crypto.verify} */
+    public enum Verification {
+        /** the signature is valid for the message under the key */
+        VALID,
+        /** the signature was checked and does not match the message and key */
+        INVALID,
+        /** the key is missing or cannot be used for SHA256withRSA verification */
+        BAD_KEY,
+        /** the message or signature is missing, or the signature is not well formed */
+        MALFORMED,
+        /** no installed provider implements SHA256withRSA */
+        NO_PROVIDER
+    }
+
+    /**
+     * Per-thread SHA256withRSA engines. {@code Signature.getInstance} performs a provider lookup
+     * and allocates fresh engine state, so each thread keeps one engine and re-initializes it with
+     * {@code initVerify} for every check. Null if no provider implements the algorithm.
+     */
+    private static final ThreadLocal<Signature> VERIFIERS = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance("SHA256withRSA");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +43,32 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
+        return verify(pubKey, message, signature) == Verification.VALID;
+    }
+
+    /**
+     * Checks {@code signature} against {@code message} under {@code pubKey} using a reusable
+     * per-thread engine, reporting key, encoding and provider failures as a {@code Verification}
+     * instead of printing them.
+     */
+    public static Verification verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        Signature sig = VERIFIERS.get();
+        if (sig == null)
+            return Verification.NO_PROVIDER;
+        if (pubKey == null)
+            return Verification.BAD_KEY;
+        if (message == null || signature == null)
+            return Verification.MALFORMED;
         try {
             sig.initVerify(pubKey);
         } catch (InvalidKeyException e) {
-            e.printStackTrace();
+            return Verification.BAD_KEY;
         }
         try {
             sig.update(message);
-            return sig.verify(signature);
+            return sig.verify(signature) ? Verification.VALID : Verification.INVALID;
         } catch (SignatureException e) {
-            e.printStackTrace();
+            return Verification.MALFORMED;
         }
-        return false;
-
     }
 }
@@ -0,0 +1,251 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+
+/**
+ * Binary file holding a generated epoch together with the keys it was generated with, so that
+ * load tests can replay the same epoch, or generate more from the same keys, without paying for
+ * RSA key generation again.
+ *
+ * The file starts with a header: magic, version, seed and the key pairs, each as a length-prefixed
+ * X.509 public key and PKCS#8 private key. Records follow, each starting with a tag: pool entries
+ * first, then transactions, then an end tag. Addresses are written as the index of their key pair.
+ * Both writing and reading stream, so epochs much larger than the heap can be stored and replayed
+ * in batches.
+ *
+ * Usage: {@code java EpochFile <file> [txs] [fanIn] [fanOut] [depth]} generates an epoch into a
+ * file; the system properties {@code seed}, {@code keys}, {@code keyBits}, {@code doubleSpends},
+ * {@code badSignatures} and {@code negativeOutputs} set the seed, keys and fault rates.
+ */
+public class EpochFile {
+
+    private static final int MAGIC = 0x45504f43; // "EPOC"
+    private static final int VERSION = 1;
+
+    private static final byte END = 0;
+    private static final byte UTXO_RECORD = 1;
+    private static final byte TX_RECORD = 2;
+
+    private EpochFile() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path path = Paths.get(args[0]);
+        int numTxs = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int fanIn = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int fanOut = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+        WorkloadGenerator generator = new WorkloadGenerator(Long.getLong("seed", 1),
+                Integer.getInteger("keys", 16), Integer.getInteger("keyBits", 2048));
+        generator.setDoubleSpendRate(Double.parseDouble(System.getProperty("doubleSpends", "0.05")));
+        generator.setBadSignatureRate(Double.parseDouble(System.getProperty("badSignatures", "0.01")));
+        generator.setNegativeOutputRate(Double.parseDouble(System.getProperty("negativeOutputs", "0.01")));
+        long start = System.nanoTime();
+        write(path, generator, 0, numTxs, fanIn, fanOut, depth);
+        System.out.printf("wrote %s: %d bytes in %.1f s%n", path, Files.size(path),
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    /** Generates epoch number {@code epoch} with {@code generator} straight into the file at {@code path} */
+    public static void write(Path path, WorkloadGenerator generator, int epoch, int numTxs, int fanIn,
+            int fanOut, int chainDepth) throws IOException, GeneralSecurityException {
+        try (Writer writer = new Writer(path, generator)) {
+            generator.generate(epoch, numTxs, fanIn, fanOut, chainDepth, writer);
+        }
+    }
+
+    /** Reads the whole epoch stored at {@code path} into memory */
+    public static WorkloadGenerator.Epoch load(Path path) throws IOException, GeneralSecurityException {
+        try (Reader reader = new Reader(path)) {
+            UTXOPool pool = UTXOPool.persistent();
+            reader.readPool(pool);
+            ArrayList<Transaction> txs = new ArrayList<Transaction>();
+            for (Transaction tx = reader.next(); tx != null; tx = reader.next())
+                txs.add(tx);
+            return new WorkloadGenerator.Epoch(pool, txs.toArray(new Transaction[txs.size()]));
+        }
+    }
+
+    /** Writes an epoch as a {@code WorkloadGenerator.Sink}; only addresses of the generator's keys */
+    public static class Writer implements WorkloadGenerator.Sink, Closeable {
+        private final WorkloadGenerator generator;
+        private final DataOutputStream out;
+
+        /** Creates the file at {@code path} and writes the header with the keys of {@code generator} */
+        public Writer(Path path, WorkloadGenerator generator) throws IOException {
+            this.generator = generator;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generator.getSeed());
+            out.writeInt(generator.numKeys());
+            for (int i = 0; i < generator.numKeys(); i++) {
+                writeBytes(generator.key(i).getPublic().getEncoded());
+                writeBytes(generator.key(i).getPrivate().getEncoded());
+            }
+        }
+
+        public void utxo(UTXO utxo, Transaction.Output txOut) throws IOException {
+            out.writeByte(UTXO_RECORD);
+            writeBytes(utxo.getTxHash());
+            out.writeInt(utxo.getIndex());
+            writeOutput(txOut);
+        }
+
+        public void transaction(Transaction tx) throws IOException {
+            out.writeByte(TX_RECORD);
+            out.writeInt(tx.numInputs());
+            for (Transaction.Input in : tx.getInputs()) {
+                writeBytes(in.prevTxHash);
+                out.writeInt(in.outputIndex);
+                writeBytes(in.signature);
+            }
+            out.writeInt(tx.numOutputs());
+            for (Transaction.Output op : tx.getOutputs())
+                writeOutput(op);
+        }
+
+        /** Writes the end tag and closes the file */
+        public void close() throws IOException {
+            out.writeByte(END);
+            out.close();
+        }
+
+        private void writeOutput(Transaction.Output txOut) throws IOException {
+            int key = generator.keyIndex(txOut.address);
+            if (key < 0)
+                throw new IllegalArgumentException("output is not paid to a generator key");
+            out.writeDouble(txOut.value);
+            out.writeInt(key);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Reads an epoch file: the header when opened, then {@code readPool} for the pool entries and
+     * {@code next} or {@code nextBatch} for the transactions
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long seed;
+        private final KeyPair[] keys;
+        private byte tag = -1;
+
+        /** Opens the file at {@code path} and reads its header */
+        public Reader(Path path) throws IOException, GeneralSecurityException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                throw new IOException("not an epoch file: " + path);
+            }
+            seed = in.readLong();
+            keys = new KeyPair[in.readInt()];
+            KeyFactory factory = KeyFactory.getInstance("RSA");
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = new KeyPair(factory.generatePublic(new X509EncodedKeySpec(readBytes())),
+                        factory.generatePrivate(new PKCS8EncodedKeySpec(readBytes())));
+            }
+        }
+
+        /** @return a generator over the stored seed and keys, to generate further epochs */
+        public WorkloadGenerator generator() {
+            return new WorkloadGenerator(seed, keys);
+        }
+
+        /** Adds every pool entry of the file to {@code pool}; call before reading transactions */
+        public void readPool(UTXOPool pool) throws IOException {
+            while (peek() == UTXO_RECORD) {
+                tag = -1;
+                UTXO utxo = new UTXO(readBytes(), in.readInt());
+                pool.addUTXO(utxo, readOutput(new Transaction()));
+            }
+        }
+
+        /** @return the next transaction, or null at the end of the file */
+        public Transaction next() throws IOException {
+            byte t = peek();
+            if (t == END)
+                return null;
+            if (t != TX_RECORD)
+                throw new IOException("pool entries must be read before transactions");
+            tag = -1;
+            Transaction tx = new Transaction();
+            int numInputs = in.readInt();
+            byte[][] signatures = new byte[numInputs][];
+            for (int i = 0; i < numInputs; i++) {
+                tx.addInput(readBytes(), in.readInt());
+                signatures[i] = readBytes();
+            }
+            int numOutputs = in.readInt();
+            for (int o = 0; o < numOutputs; o++) {
+                Transaction.Output op = readOutput(tx);
+                tx.addOutput(op.value, op.address);
+            }
+            for (int i = 0; i < numInputs; i++)
+                tx.addSignature(signatures[i], i);
+            tx.finalize();
+            return tx;
+        }
+
+        /** @return up to {@code max} next transactions, an empty array at the end of the file */
+        public Transaction[] nextBatch(int max) throws IOException {
+            ArrayList<Transaction> batch = new ArrayList<Transaction>();
+            for (Transaction tx; batch.size() < max && (tx = next()) != null;)
+                batch.add(tx);
+            return batch.toArray(new Transaction[batch.size()]);
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private byte peek() throws IOException {
+            if (tag < 0) {
+                int t = in.read();
+                if (t < 0)
+                    throw new EOFException("epoch file is truncated");
+                tag = (byte) t;
+            }
+            return tag;
+        }
+
+        private Transaction.Output readOutput(Transaction owner) throws IOException {
+            double value = in.readDouble();
+            int key = in.readInt();
+            if (key < 0 || key >= keys.length)
+                throw new IOException("bad key index " + key);
+            return owner.new Output(value, keys[key].getPublic());
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = in.readInt();
+            if (length < 0)
+                return null;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+}
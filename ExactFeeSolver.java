@@ -0,0 +1,389 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Exact fee-maximizing selection for {@code MaxFeeTxHandler}: finds a mutually valid set of
+ * transactions with the largest total fee, where the greedy selector can be beaten by a high-fee
+ * transaction that conflicts with several medium-fee ones, or by a low-fee parent that unlocks
+ * high-fee children.
+ *
+ * The epoch is reduced to a {@code CandidateGraph} and split into connected components of its
+ * conflict sets and parent links, which are independent and solved one at a time by
+ * branch-and-bound. Candidates are decided in dependency order, including before excluding, and a
+ * branch is pruned when its fee so far plus an upper bound on the rest cannot beat the best
+ * selection found: the remaining candidates that can still be included, counting only the highest
+ * fee among those sharing their first claimed output, since at most one of them can be accepted.
+ *
+ * The search starts from the greedy selection, so the result is never worse than greedy. A
+ * component larger than the size limit, or still being searched when the time budget runs out,
+ * keeps the best selection found so far, which is the greedy one if nothing better turned up; an
+ * exhausted budget therefore makes the result depend on timing.
+ *
+ * With a block size limit, counted in {@code TxCodec} frame bytes as by {@code FeeRateSelector},
+ * the components compete for the same bytes, so the whole epoch is searched as one component and
+ * only small epochs are solved exactly. The search then starts from the greedy selection if it fits
+ * and pays more than the {@code FeeRateSelector} block under the same limit, and from that block
+ * otherwise, so an epoch too large or too slow to search still yields a block that fits.
+ */
+public class ExactFeeSolver {
+
+    private final UTXOPool utxoPool;
+    private final TxValidator validator;
+    private final GreedyFeeSelector greedy;
+    private final FeeRateSelector feeRate;
+    private long timeBudgetNanos = 100_000_000L;
+    private int maxComponentSize = 256;
+    private long maxBytes = Long.MAX_VALUE;
+    private boolean optimal = true;
+
+    /** Creates a solver that validates with {@code validator} and spends from {@code utxoPool} */
+    public ExactFeeSolver(UTXOPool utxoPool, TxValidator validator) {
+        this.utxoPool = utxoPool;
+        this.validator = validator;
+        this.greedy = new GreedyFeeSelector(utxoPool, validator);
+        this.feeRate = new FeeRateSelector(utxoPool, validator);
+    }
+
+    /** Sets the time one {@code select} call may spend searching, 100 ms by default */
+    public void setTimeBudget(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative time budget");
+        timeBudgetNanos = millis * 1_000_000L;
+    }
+
+    /** Sets the number of candidates above which a component is left to greedy, 256 by default */
+    public void setMaxComponentSize(int maxComponentSize) {
+        this.maxComponentSize = maxComponentSize;
+    }
+
+    /** Sets the size limit of a block in bytes, unlimited by default */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("negative block size");
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return true if the most recent {@code select} call proved its selection optimal */
+    public boolean isOptimal() {
+        return optimal;
+    }
+
+    /**
+     * Selects from {@code possibleTxs}, applying each accepted transaction to the pool and
+     * recording it in {@code undo} if that is not null.
+     *
+     * @return the accepted transactions, parents before children
+     */
+    public Transaction[] select(Transaction[] possibleTxs, UTXOUndo undo) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+
+        // run greedy on the pool and roll it back, keeping its choices as the starting point
+        UTXOUndo greedyUndo = new UTXOUndo();
+        Transaction[] greedyTxs = greedy.select(possibleTxs, greedyUndo);
+        utxoPool.undo(greedyUndo);
+
+        CandidateGraph graph = new CandidateGraph(possibleTxs, utxoPool, validator);
+        int n = graph.size();
+        HashMap<ByteBuffer, Integer> byHash = new HashMap<>();
+        for (int c = 0; c < n; c++)
+            byHash.put(ByteBuffer.wrap(graph.get(c).getHash()), c);
+        boolean[] chosen = choices(greedyTxs, byHash, n);
+
+        long[] size = new long[n];
+        ArrayList<int[]> components;
+        if (maxBytes == Long.MAX_VALUE) {
+            components = components(graph);
+        } else {
+            int[] all = new int[n];
+            for (int c = 0; c < n; c++) {
+                all[c] = c;
+                size[c] = TxCodec.encodedLength(graph.get(c));
+            }
+            // start from the better of greedy, if it fits, and the fee-rate block, which does
+            feeRate.setMaxBytes(maxBytes);
+            UTXOUndo feeRateUndo = new UTXOUndo();
+            Transaction[] feeRateTxs = feeRate.select(possibleTxs, feeRateUndo);
+            utxoPool.undo(feeRateUndo);
+            boolean[] packed = choices(feeRateTxs, byHash, n);
+            if (sum(size, chosen) > maxBytes || fee(graph, packed) > fee(graph, chosen))
+                chosen = packed;
+            components = new ArrayList<>();
+            if (n > 0)
+                components.add(all);
+        }
+
+        optimal = true;
+        for (int[] component : components) {
+            if (component.length > maxComponentSize || System.nanoTime() > deadline) {
+                optimal = false;
+                continue;
+            }
+            Search search = new Search(graph, component, chosen, size, maxBytes, deadline);
+            search.run(0, 0, 0);
+            if (search.timedOut)
+                optimal = false;
+            for (int k = 0; k < component.length; k++)
+                chosen[component[k]] = search.best[k];
+        }
+
+        // drop zero-fee candidates that no chosen candidate depends on, children first
+        for (int c = n - 1; c >= 0; c--) {
+            if (!chosen[c] || graph.fee(c) > 0)
+                continue;
+            boolean needed = false;
+            for (int child : graph.children(c))
+                needed |= chosen[child];
+            chosen[c] = needed;
+        }
+
+        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+        for (int c = 0; c < n; c++) {
+            if (chosen[c]) {
+                acceptedTxs.add(graph.get(c));
+                utxoPool.applyTx(graph.get(c), undo);
+            }
+        }
+        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+    }
+
+    /** @return which candidates, numbered by {@code byHash}, are among {@code txs} */
+    private static boolean[] choices(Transaction[] txs, HashMap<ByteBuffer, Integer> byHash,
+            int n) {
+        boolean[] chosen = new boolean[n];
+        for (Transaction tx : txs) {
+            Integer c = byHash.get(ByteBuffer.wrap(tx.getHash()));
+            if (c != null)
+                chosen[c] = true;
+        }
+        return chosen;
+    }
+
+    /** @return the total fee of the chosen candidates */
+    private static long fee(CandidateGraph graph, boolean[] chosen) {
+        long total = 0;
+        for (int c = 0; c < chosen.length; c++) {
+            if (chosen[c])
+                total += graph.fee(c);
+        }
+        return total;
+    }
+
+    /** @return the sum of {@code values} over the chosen candidates */
+    private static long sum(long[] values, boolean[] chosen) {
+        long total = 0;
+        for (int c = 0; c < chosen.length; c++) {
+            if (chosen[c])
+                total += values[c];
+        }
+        return total;
+    }
+
+    /**
+     * @return the connected components of the conflict sets and parent links of {@code graph}, each
+     *         in candidate order
+     */
+    static ArrayList<int[]> components(CandidateGraph graph) {
+        int n = graph.size();
+        int[] root = new int[n];
+        for (int c = 0; c < n; c++)
+            root[c] = c;
+        for (int c = 0; c < n; c++) {
+            for (int p : graph.parents(c))
+                union(root, c, p);
+        }
+        for (int k = 0; k < graph.numConflictSets(); k++) {
+            int[] set = graph.claimants(k);
+            for (int i = 1; i < set.length; i++)
+                union(root, set[0], set[i]);
+        }
+
+        HashMap<Integer, ArrayList<Integer>> members = new HashMap<>();
+        ArrayList<ArrayList<Integer>> lists = new ArrayList<>();
+        for (int c = 0; c < n; c++) {
+            int r = find(root, c);
+            ArrayList<Integer> list = members.get(r);
+            if (list == null) {
+                list = new ArrayList<>();
+                members.put(r, list);
+                lists.add(list);
+            }
+            list.add(c);
+        }
+        ArrayList<int[]> components = new ArrayList<>();
+        for (ArrayList<Integer> list : lists) {
+            int[] component = new int[list.size()];
+            for (int i = 0; i < component.length; i++)
+                component[i] = list.get(i);
+            components.add(component);
+        }
+        return components;
+    }
+
+    private static int find(int[] root, int c) {
+        while (root[c] != c) {
+            root[c] = root[root[c]];
+            c = root[c];
+        }
+        return c;
+    }
+
+    private static void union(int[] root, int a, int b) {
+        a = find(root, a);
+        b = find(root, b);
+        if (a != b)
+            root[Math.max(a, b)] = Math.min(a, b);
+    }
+
+    /** Branch-and-bound over one component, with candidates renumbered to their index in it */
+    private static final class Search {
+        private final long[] fee;
+        private final int[][] parents;
+        /** conflict set of each candidate's first input, renumbered within the component */
+        private final int[] firstSet;
+        /** renumbered conflict sets of each candidate */
+        private final int[][] sets;
+        /** frame length of each candidate, all 0 without a size limit */
+        private final long[] size;
+        private final long maxBytes;
+        private final long deadline;
+
+        /** decision per candidate: 1 included, -1 excluded, 0 not decided yet */
+        private final int[] state;
+        /** candidate holding each conflict set, or -1 */
+        private final int[] owner;
+        private final boolean[] alive;
+        private final long[] boundBySet;
+
+        final boolean[] best;
+        private long bestFee;
+        private long nodes;
+        boolean timedOut;
+
+        Search(CandidateGraph graph, int[] component, boolean[] initial, long[] sizes, long maxBytes,
+                long deadline) {
+            int m = component.length;
+            this.maxBytes = maxBytes;
+            this.deadline = deadline;
+            HashMap<Integer, Integer> local = new HashMap<>();
+            for (int k = 0; k < m; k++)
+                local.put(component[k], k);
+            HashMap<Integer, Integer> localSets = new HashMap<>();
+
+            fee = new long[m];
+            size = new long[m];
+            parents = new int[m][];
+            sets = new int[m][];
+            firstSet = new int[m];
+            best = new boolean[m];
+            for (int k = 0; k < m; k++) {
+                int c = component[k];
+                fee[k] = graph.fee(c);
+                size[k] = sizes[c];
+                int[] p = graph.parents(c);
+                parents[k] = new int[p.length];
+                for (int i = 0; i < p.length; i++)
+                    parents[k][i] = local.get(p[i]);
+                int[] claims = graph.claims(c);
+                sets[k] = new int[claims.length];
+                for (int i = 0; i < claims.length; i++) {
+                    Integer s = localSets.get(claims[i]);
+                    if (s == null) {
+                        s = localSets.size();
+                        localSets.put(claims[i], s);
+                    }
+                    sets[k][i] = s;
+                }
+                // a candidate without inputs conflicts with nothing and gets a set of its own
+                firstSet[k] = claims.length > 0 ? sets[k][0] : -1;
+                best[k] = initial[c];
+                if (best[k])
+                    bestFee += fee[k];
+            }
+            int numSets = localSets.size();
+            for (int k = 0; k < m; k++) {
+                if (firstSet[k] < 0)
+                    firstSet[k] = numSets++;
+            }
+            state = new int[m];
+            owner = new int[numSets];
+            Arrays.fill(owner, -1);
+            alive = new boolean[m];
+            boundBySet = new long[numSets];
+        }
+
+        /**
+         * Decides candidates {@code k} onwards, given {@code total} fee and {@code bytes} of size
+         * from those before it
+         */
+        void run(int k, long total, long bytes) {
+            if ((++nodes & 1023) == 0 && System.nanoTime() > deadline)
+                timedOut = true;
+            if (timedOut)
+                return;
+            if (k == state.length) {
+                if (total > bestFee) {
+                    bestFee = total;
+                    for (int i = 0; i < state.length; i++)
+                        best[i] = state[i] > 0;
+                }
+                return;
+            }
+            if (total + bound(k, maxBytes - bytes) <= bestFee)
+                return;
+
+            if (size[k] <= maxBytes - bytes && canInclude(k)) {
+                state[k] = 1;
+                for (int s : sets[k])
+                    owner[s] = k;
+                run(k + 1, total + fee[k], bytes + size[k]);
+                for (int s : sets[k])
+                    owner[s] = -1;
+            }
+            state[k] = -1;
+            run(k + 1, total, bytes);
+            state[k] = 0;
+        }
+
+        private boolean canInclude(int k) {
+            for (int p : parents[k]) {
+                if (state[p] <= 0)
+                    return false;
+            }
+            for (int s : sets[k]) {
+                if (owner[s] >= 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return an upper bound on the fee the candidates from {@code k} onwards can add: the
+         *         highest fee per first conflict set among those not yet ruled out by a conflict, a
+         *         missing parent or a size over the {@code room} left
+         */
+        private long bound(int k, long room) {
+            Arrays.fill(boundBySet, 0);
+            long sum = 0;
+            for (int i = k; i < state.length; i++) {
+                boolean possible = size[i] <= room;
+                for (int j = 0; possible && j < parents[i].length; j++) {
+                    int p = parents[i][j];
+                    if (p < k ? state[p] <= 0 : !alive[p])
+                        possible = false;
+                }
+                for (int j = 0; possible && j < sets[i].length; j++) {
+                    if (owner[sets[i][j]] >= 0)
+                        possible = false;
+                }
+                alive[i] = possible;
+                if (possible && fee[i] > boundBySet[firstSet[i]]) {
+                    sum += fee[i] - boundBySet[firstSet[i]];
+                    boundBySet[firstSet[i]] = fee[i];
+                }
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * Size-aware selection for {@code MaxFeeTxHandler}: fills a block of at most a given number of
+ * bytes, counting each transaction at the length of its {@code TxCodec} frame, by taking
+ * transactions in order of fee per byte, highest first.
+ *
+ * The epoch is reduced to a {@code CandidateGraph} and each candidate's frame length is computed
+ * once. A candidate with a positive fee enters a max-heap keyed by its fee rate as soon as all of
+ * its parents in the epoch are in the block. The best rate is taken if it still fits and none of
+ * the outputs it claims is spent yet; one that no longer fits is discarded for good, and smaller
+ * ones behind it still get their turn, so the block is packed knapsack-style. Rates are compared
+ * exactly, as 128-bit cross products, and ties go to the lower batch position.
+ *
+ * Packing by rate alone can waste most of a small budget, so as in the classic knapsack
+ * approximation the result is replaced by the single highest-fee transaction without parents that
+ * fits, whenever that one pays more on its own. The block then earns at least half the fee of the
+ * best block when no dependencies are involved.
+ */
+public class FeeRateSelector {
+
+    private final UTXOPool utxoPool;
+    private final TxValidator validator;
+    private long maxBytes = Long.MAX_VALUE;
+
+    /** Creates a selector that validates with {@code validator} and spends from {@code utxoPool} */
+    public FeeRateSelector(UTXOPool utxoPool, TxValidator validator) {
+        this.utxoPool = utxoPool;
+        this.validator = validator;
+    }
+
+    /** Sets the size limit of a block in bytes, unlimited by default */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("negative block size");
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return the size limit of a block in bytes */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Selects from {@code possibleTxs}, applying each accepted transaction to the pool and
+     * recording it in {@code undo} if that is not null.
+     *
+     * @return the accepted transactions in the order they were chosen, which together take at most
+     *         {@code getMaxBytes()} bytes
+     */
+    public Transaction[] select(Transaction[] possibleTxs, UTXOUndo undo) {
+        CandidateGraph graph = new CandidateGraph(possibleTxs, utxoPool, validator);
+        int n = graph.size();
+        int[] size = new int[n];
+        for (int c = 0; c < n; c++)
+            size[c] = TxCodec.encodedLength(graph.get(c));
+
+        boolean[] spent = new boolean[graph.numConflictSets()];
+        int[] missingParents = new int[n];
+        PriorityQueue<Entry> heap = new PriorityQueue<>();
+        int single = -1;
+        for (int c = 0; c < n; c++) {
+            missingParents[c] = graph.parents(c).length;
+            if (missingParents[c] == 0 && graph.fee(c) > 0) {
+                heap.add(new Entry(graph.fee(c), size[c], graph.position(c), c));
+                if (size[c] <= maxBytes && (single < 0 || graph.fee(c) > graph.fee(single)))
+                    single = c;
+            }
+        }
+
+        ArrayList<Integer> chosen = new ArrayList<>();
+        long bytes = 0;
+        long total = 0;
+        while (!heap.isEmpty()) {
+            int c = heap.poll().candidate;
+            if (size[c] > maxBytes - bytes || claimsSpent(graph, c, spent))
+                continue;
+            chosen.add(c);
+            bytes += size[c];
+            total += graph.fee(c);
+            for (int k : graph.claims(c))
+                spent[k] = true;
+            for (int child : graph.children(c)) {
+                if (--missingParents[child] == 0 && graph.fee(child) > 0)
+                    heap.add(new Entry(graph.fee(child), size[child], graph.position(child), child));
+            }
+        }
+        if (single >= 0 && graph.fee(single) > total) {
+            chosen.clear();
+            chosen.add(single);
+        }
+
+        Transaction[] acceptedTxs = new Transaction[chosen.size()];
+        for (int i = 0; i < acceptedTxs.length; i++) {
+            acceptedTxs[i] = graph.get(chosen.get(i));
+            utxoPool.applyTx(acceptedTxs[i], undo);
+        }
+        return acceptedTxs;
+    }
+
+    private static boolean claimsSpent(CandidateGraph graph, int c, boolean[] spent) {
+        for (int k : graph.claims(c)) {
+            if (spent[k])
+                return true;
+        }
+        return false;
+    }
+
+    /** A heap entry of a candidate whose parents are all in the block */
+    private static final class Entry implements Comparable<Entry> {
+        final long fee;
+        final int size;
+        final int position;
+        final int candidate;
+
+        Entry(long fee, int size, int position, int candidate) {
+            this.fee = fee;
+            this.size = size;
+            this.position = position;
+            this.candidate = candidate;
+        }
+
+        /** Orders higher fees per byte first, then lower batch positions */
+        public int compareTo(Entry other) {
+            // fee / size against other.fee / other.size, as fee * other.size against other.fee * size
+            long high = Math.multiplyHigh(other.fee, size);
+            long otherHigh = Math.multiplyHigh(fee, other.size);
+            int c = high != otherHigh ? Long.compare(high, otherHigh)
+                    : Long.compareUnsigned(other.fee * size, fee * other.size);
+            return c != 0 ? c : Integer.compare(position, other.position);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Greedy fee-maximizing selection used by {@code MaxFeeTxHandler}: repeatedly accept the valid
+ * transaction with the highest positive fee and apply it to the pool, until no valid transaction
+ * with a positive fee is left.
+ *
+ * The selection is incremental. Every transaction is validated once up front and valid ones wait
+ * in a max-heap keyed by fee. A transaction's validity and fee only depend on the pool entries of
+ * the outputs it claims, so after an acceptance only the transactions claiming one of the outputs
+ * it spent (conflicts) or one of the outputs it created (children) are validated again. Heap
+ * entries made stale by that are skipped when they surface. Fees are compared exactly, in
+ * {@code Amounts} units, and ties are broken by batch position.
+ *
+ * With an executor, the up-front pass, which validates and scores every transaction against the
+ * starting pool, runs in parallel on it. The pool is not written until that pass has finished, and
+ * each result is stored by batch position; the heap is then filled sequentially in position order,
+ * so the selection is the same for any number of threads. The pass relies on concurrent reads of
+ * the pool's store being safe without locking. That holds for the in-memory stores, whose reads
+ * write nothing, but not for {@code MappedUTXOStore}, whose reads fill its address caches; handlers
+ * never hand it over, since they select on a private copy of the pool and a mapped store copies
+ * into a {@code PersistentUTXOStore}. A caller passing an executor with a pool of its own must not
+ * back it with a mapped store.
+ */
+public class GreedyFeeSelector {
+
+    private final UTXOPool utxoPool;
+    private final TxValidator validator;
+    private final ForkJoinPool executor;
+
+    /** Creates a selector that validates with {@code validator} and spends from {@code utxoPool} */
+    public GreedyFeeSelector(UTXOPool utxoPool, TxValidator validator) {
+        this(utxoPool, validator, null);
+    }
+
+    /**
+     * Creates a selector that validates with {@code validator}, spends from {@code utxoPool} and
+     * runs its up-front pass on {@code executor}, or on the calling thread if it is null
+     */
+    public GreedyFeeSelector(UTXOPool utxoPool, TxValidator validator, ForkJoinPool executor) {
+        this.utxoPool = utxoPool;
+        this.validator = validator;
+        this.executor = executor;
+    }
+
+    /**
+     * Selects from {@code possibleTxs}, applying each accepted transaction to the pool and
+     * recording it in {@code undo} if that is not null.
+     *
+     * @return the accepted transactions in the order they were chosen
+     */
+    public Transaction[] select(Transaction[] possibleTxs, UTXOUndo undo) {
+        TxGraph graph = new TxGraph(possibleTxs);
+        int n = graph.size();
+
+        // positions claiming each output, to find the conflicts of an accepted transaction
+        HashMap<UTXO, ArrayList<Integer>> claimants = new HashMap<>();
+        HashSet<Transaction> seen = new HashSet<>();
+        boolean[] done = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            Transaction tx = graph.get(i);
+            if (tx == null || !seen.add(tx)) {
+                done[i] = true;
+                continue;
+            }
+            for (Transaction.Input in : tx.getInputs()) {
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                ArrayList<Integer> list = claimants.get(utxo);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    claimants.put(utxo, list);
+                }
+                list.add(i);
+            }
+        }
+
+        long[] fees = score(graph, done);
+        int[] version = new int[n];
+        PriorityQueue<Candidate> heap = new PriorityQueue<>();
+        for (int i = 0; i < n; i++) {
+            if (done[i])
+                continue;
+            version[i]++;
+            if (fees[i] > 0)
+                heap.add(new Candidate(fees[i], i, version[i]));
+        }
+
+        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+        while (!heap.isEmpty()) {
+            Candidate best = heap.poll();
+            int i = best.position;
+            if (done[i] || best.version != version[i])
+                continue;
+            Transaction tx = graph.get(i);
+            done[i] = true;
+            acceptedTxs.add(tx);
+
+            utxoPool.applyTx(tx, undo);
+
+            for (Transaction.Input input : tx.getInputs()) {
+                ArrayList<Integer> conflicts = claimants.get(new UTXO(input.prevTxHash, input.outputIndex));
+                for (int c : conflicts)
+                    evaluate(graph, c, done, version, heap);
+            }
+            int g = graph.group(i);
+            if (g >= 0) {
+                for (int child : graph.children(g))
+                    evaluate(graph, child, done, version, heap);
+            }
+        }
+        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+    }
+
+    /**
+     * @return the fee of {@code tx} against the current pool: the value of the claimed outputs that
+     *         are in the pool minus the value of its outputs
+     */
+    public double calculateFee(Transaction tx) {
+        return Amounts.toCoins(calculateFeeUnits(tx));
+    }
+
+    /**
+     * @return the fee of {@code tx} as computed by {@code calculateFee}, exactly, in {@code Amounts}
+     *         units
+     * @throws ArithmeticException if a value or sum is out of range
+     */
+    public long calculateFeeUnits(Transaction tx) {
+        long inputSum = 0;
+        for (Transaction.Input input : tx.getInputs()) {
+            Transaction.Output prevOutput = utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex));
+            if (prevOutput != null) {
+                inputSum = Amounts.add(inputSum, Amounts.toUnitsFloor(prevOutput.value));
+            }
+        }
+        return Math.subtractExact(inputSum, Amounts.sum(tx.getOutputs()));
+    }
+
+    /**
+     * @return the fee of each position that is not done and valid against the pool, and 0 for the
+     *         others, computed in parallel on the executor if there is one
+     */
+    private long[] score(final TxGraph graph, final boolean[] done) {
+        final long[] fees = new long[graph.size()];
+        if (executor == null) {
+            for (int i = 0; i < fees.length; i++)
+                fees[i] = score(graph, i, done);
+        } else {
+            executor.submit(() -> IntStream.range(0, fees.length).parallel()
+                    .forEach(i -> fees[i] = score(graph, i, done))).join();
+        }
+        return fees;
+    }
+
+    private long score(TxGraph graph, int i, boolean[] done) {
+        if (done[i] || !validator.isValidTx(graph.get(i)))
+            return 0;
+        return calculateFeeUnits(graph.get(i));
+    }
+
+    /** Re-validates position {@code i} and queues it again if it is valid with a positive fee */
+    private void evaluate(TxGraph graph, int i, boolean[] done, int[] version, PriorityQueue<Candidate> heap) {
+        if (done[i])
+            return;
+        version[i]++;
+        Transaction tx = graph.get(i);
+        if (!validator.isValidTx(tx))
+            return;
+        long fee = calculateFeeUnits(tx);
+        if (fee > 0)
+            heap.add(new Candidate(fee, i, version[i]));
+    }
+
+    /** A heap entry, valid only while {@code version} matches the position's current version */
+    private static final class Candidate implements Comparable<Candidate> {
+        final long fee;
+        final int position;
+        final int version;
+
+        Candidate(long fee, int position, int version) {
+            this.fee = fee;
+            this.position = position;
+            this.version = version;
+        }
+
+        /** Orders higher fees first, then lower batch positions */
+        public int compareTo(Candidate other) {
+            int c = Long.compare(other.fee, fee);
+            return c != 0 ? c : Integer.compare(position, other.position);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** The default {@code UTXOStore}, backed by a {@code HashMap}; {@code copy} is O(n) */
+public class HashMapUTXOStore implements UTXOStore {
+
+    private final HashMap<UTXO, Transaction.Output> H;
+
+    /** Creates an empty store */
+    public HashMapUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashMapUTXOStore(HashMapUTXOStore other) {
+        H = new HashMap<UTXO, Transaction.Output>(other.H);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    public void remove(UTXO utxo) {
+        H.remove(utxo);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    public ArrayList<UTXO> keys() {
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    public UTXOStore copy() {
+        return new HashMapUTXOStore(this);
+    }
+}
@@ -0,0 +1,661 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A disk-backed {@code UTXOStore} that survives restarts. Opening an existing store maps its file
+ * and replays the short write-ahead log written since the last checkpoint, so no history has to be
+ * replayed to rebuild the UTXO set.
+ *
+ * <p>Three files are used, all next to the path given to {@code open}:
+ *
+ * <ul>
+ * <li>the data file, memory-mapped: a header, a hashed bucket index of record offsets, and an
+ * append region of fixed 64-byte UTXO records chained per bucket plus length-prefixed address
+ * records holding each X.509-encoded public key once;</li>
+ * <li>{@code <file>.wal}, the write-ahead log: every {@code put} and {@code remove} is appended there
+ * with a sequence number and a CRC before it is applied to an in-memory overlay;</li>
+ * <li>{@code <file>.ckpt}, a checkpoint journal that only exists while a checkpoint is in progress.</li>
+ * </ul>
+ *
+ * <p>Reads consult the overlay first and the mapped file second. Every {@code checkpointInterval}
+ * changed keys, or on {@code checkpoint} and {@code close}, the overlay is folded into the data
+ * file. The checkpoint first computes every 8-byte word and record it will write, including the
+ * new header, writes them to the journal and forces it, and only then writes the mapped file and
+ * forces it. A crash before the journal is complete leaves the data file untouched; a crash after
+ * that is repaired on the next open by applying the journal again. The WAL is truncated once the
+ * journal is gone, and WAL entries already covered by the header's checkpoint sequence are skipped
+ * on replay, so a crash between those two steps is harmless too.
+ *
+ * <p>Changes are durable once the WAL is forced: after every write if {@code syncEveryWrite} is set,
+ * otherwise on {@code sync}, {@code checkpoint} and {@code close}. Removed records are recycled
+ * through a free list; address records are never freed, and are decoded through the shared
+ * {@code AddressRegistry} at most once per process. Opening walks the bucket chains and the free
+ * list to index the address records they reference, so a key stored before a restart is not
+ * written again; only a record whose every referencing UTXO record has been recycled is lost to
+ * that index. Only UTXOs with 32-byte transaction hashes and RSA addresses can be stored. Values
+ * are stored in {@code Amounts} units, and {@code put} rejects one that is not a whole number of
+ * units, so the freshly built outputs {@code get} returns hold exactly the values stored.
+ *
+ * <p>The store is not thread-safe, and that includes its reads: {@code get} caches the addresses it
+ * decodes.
+ */
+public class MappedUTXOStore implements UTXOStore, Closeable {
+
+    private static final long MAGIC = 0x5554584f504f4c32L; // "UTXOPOL2", values in units
+
+    private static final int HDR_MAGIC = 0;
+    private static final int HDR_BUCKETS = 8;
+    private static final int HDR_APPEND = 16;
+    private static final int HDR_LIVE = 24;
+    private static final int HDR_FREE = 32;
+    private static final int HDR_CHECKPOINT_SEQ = 40;
+    private static final int HEADER_BYTES = 64;
+
+    /** UTXO record layout, one 8-byte word per field */
+    private static final int REC_NEXT = 0;
+    private static final int REC_INDEX = 8;
+    private static final int REC_HASH = 16;
+    private static final int REC_VALUE = 48;
+    private static final int REC_ADDRESS = 56;
+    private static final int RECORD_BYTES = 64;
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+    private static final int MAX_BUCKETS = 1 << 26;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int JOURNAL_MAGIC = 0x434b5054; // "CKPT"
+
+    /** Overlay value marking a key removed since the last checkpoint */
+    private static final Transaction.Output REMOVED = null;
+
+    /** Owner of the {@code Transaction.Output} objects built by {@code get} */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    private final Path dataPath;
+    private final Path walPath;
+    private final Path journalPath;
+    private final FileChannel data;
+    private final FileChannel wal;
+    private final int checkpointInterval;
+    private final boolean syncEveryWrite;
+
+    private MappedByteBuffer[] segments;
+    private long fileSize;
+    private long bucketCount;
+
+    /** Changes not yet folded into the data file; a null value marks a removal */
+    private final LinkedHashMap<UTXO, Transaction.Output> overlay = new LinkedHashMap<>();
+    private long nextSeq;
+    private int size;
+
+    /** Words and records a checkpoint in progress will write, consulted by reads meanwhile */
+    private final LinkedHashMap<Long, Long> pendingWords = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, byte[]> pendingBlobs = new LinkedHashMap<>();
+
+    private final AddressRegistry addresses = AddressRegistry.getShared();
+
+    /** Address records written so far, by id in the shared {@code AddressRegistry} and by offset */
+    private final HashMap<Integer, Long> addressOffsets = new HashMap<>();
+    private final HashMap<Long, Integer> addressesByOffset = new HashMap<>();
+
+    private MappedUTXOStore(Path dataPath, int checkpointInterval, boolean syncEveryWrite)
+            throws IOException {
+        this.dataPath = dataPath;
+        this.walPath = Paths.get(dataPath + ".wal");
+        this.journalPath = Paths.get(dataPath + ".ckpt");
+        this.checkpointInterval = checkpointInterval;
+        this.syncEveryWrite = syncEveryWrite;
+        this.data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.wal = FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the store at {@code path}, creating it with {@code buckets} hash buckets (rounded up to
+     * a power of two) if it does not exist, and recovering it otherwise.
+     *
+     * @param checkpointInterval number of changed keys held in the overlay before a checkpoint
+     * @param syncEveryWrite whether every {@code put} and {@code remove} forces the WAL to disk
+     */
+    public static MappedUTXOStore open(Path path, int buckets, int checkpointInterval,
+            boolean syncEveryWrite) throws IOException {
+        if (buckets <= 0 || buckets > MAX_BUCKETS)
+            throw new IllegalArgumentException("bucket count out of range: " + buckets);
+        if (checkpointInterval <= 0)
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        MappedUTXOStore store = new MappedUTXOStore(path, checkpointInterval, syncEveryWrite);
+        try {
+            if (store.data.size() == 0) {
+                int powerOfTwo = 1;
+                while (powerOfTwo < buckets)
+                    powerOfTwo <<= 1;
+                store.format(powerOfTwo);
+            } else {
+                store.map(store.data.size());
+            }
+            store.recover();
+        } catch (IOException | RuntimeException e) {
+            store.data.close();
+            store.wal.close();
+            throw e;
+        }
+        return store;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        checkKey(utxo);
+        long value;
+        try {
+            value = Amounts.toUnitsExact(txOut.value);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("value cannot be stored exactly: " + txOut.value, e);
+        }
+        boolean present = containsKey(utxo);
+        log(OP_PUT, utxo, value, txOut.address);
+        // keep what a read after the next checkpoint would return
+        overlay.put(utxo, OUTPUT_OWNER.new Output(Amounts.toCoins(value), txOut.address));
+        if (!present)
+            size++;
+        maybeCheckpoint();
+    }
+
+    public void remove(UTXO utxo) {
+        if (!containsKey(utxo))
+            return;
+        log(OP_REMOVE, utxo, 0, null);
+        overlay.put(utxo, REMOVED);
+        size--;
+        maybeCheckpoint();
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        if (overlay.containsKey(utxo))
+            return overlay.get(utxo);
+        if (!utxo.hasPackedHash())
+            return null;
+        long record = findRecord(utxo, null);
+        if (record == 0)
+            return null;
+        double value = Amounts.toCoins(readWord(record + REC_VALUE));
+        return OUTPUT_OWNER.new Output(value, addressAt(readWord(record + REC_ADDRESS)));
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        if (overlay.containsKey(utxo))
+            return overlay.get(utxo) != REMOVED;
+        return utxo.hasPackedHash() && findRecord(utxo, null) != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        for (long b = 0; b < bucketCount; b++) {
+            for (long r = readWord(bucketLink(b)); r != 0; r = readWord(r + REC_NEXT)) {
+                UTXO key = keyAt(r);
+                if (!overlay.containsKey(key))
+                    keys.add(key);
+            }
+        }
+        for (Map.Entry<UTXO, Transaction.Output> e : overlay.entrySet()) {
+            if (e.getValue() != REMOVED)
+                keys.add(e.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Copies every entry into an in-memory {@code PersistentUTXOStore}; O(n). The copy is not
+     * backed by disk, which matches how handlers use their private working copies.
+     */
+    public UTXOStore copy() {
+        PersistentUTXOStore copy = new PersistentUTXOStore();
+        for (UTXO utxo : keys())
+            copy.put(utxo, get(utxo));
+        return copy;
+    }
+
+    /** Forces every change made so far to the WAL on disk */
+    public void sync() throws IOException {
+        wal.force(false);
+    }
+
+    /** Folds all changes since the last checkpoint into the data file and empties the WAL */
+    public void checkpoint() throws IOException {
+        wal.force(false);
+        if (overlay.isEmpty())
+            return;
+        HashMap<Integer, Long> newAddresses = new HashMap<>();
+        try {
+            for (Map.Entry<UTXO, Transaction.Output> e : overlay.entrySet()) {
+                if (e.getValue() == REMOVED)
+                    stageRemove(e.getKey());
+                else
+                    stagePut(e.getKey(), e.getValue(), newAddresses);
+            }
+            stageWord(HDR_CHECKPOINT_SEQ, nextSeq - 1);
+            ensureCapacity(readWord(HDR_APPEND));
+            writeJournal();
+            applyPending();
+        } finally {
+            pendingWords.clear();
+            pendingBlobs.clear();
+        }
+        Files.deleteIfExists(journalPath);
+        for (Map.Entry<Integer, Long> e : newAddresses.entrySet()) {
+            addressOffsets.put(e.getKey(), e.getValue());
+            addressesByOffset.put(e.getValue(), e.getKey());
+        }
+        overlay.clear();
+        wal.truncate(0);
+        wal.force(true);
+    }
+
+    /** Checkpoints and closes the files */
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            data.close();
+            wal.close();
+        }
+    }
+
+    // ---- recovery ----
+
+    private void format(int buckets) throws IOException {
+        long appendStart = align(HEADER_BYTES + 8L * buckets, RECORD_BYTES);
+        map(Math.max(appendStart + 64 * RECORD_BYTES, 1 << 16));
+        writeMapped(HDR_MAGIC, MAGIC);
+        writeMapped(HDR_BUCKETS, buckets);
+        writeMapped(HDR_APPEND, appendStart);
+        writeMapped(HDR_LIVE, 0);
+        writeMapped(HDR_FREE, 0);
+        writeMapped(HDR_CHECKPOINT_SEQ, 0);
+        forceMapped();
+    }
+
+    private void recover() throws IOException {
+        if (readMapped(HDR_MAGIC) != MAGIC)
+            throw new IOException(dataPath + " is not a UTXO store");
+        replayJournal();
+        bucketCount = readMapped(HDR_BUCKETS);
+        size = (int) readMapped(HDR_LIVE);
+        long checkpointSeq = readMapped(HDR_CHECKPOINT_SEQ);
+        nextSeq = checkpointSeq + 1;
+
+        indexAddresses();
+
+        // replay the WAL up to the first torn or corrupt entry, reading it as a stream so that its
+        // size is not limited to what one buffer can hold
+        long walSize = wal.size();
+        long validEnd = 0;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(wal.position(0))));
+        while (walSize - validEnd >= 4) {
+            int length = in.readInt();
+            if (length < 13 || walSize - validEnd < 4L + length + 4)
+                break;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != in.readInt())
+                break;
+            ByteBuffer entry = ByteBuffer.wrap(bytes);
+            long seq = entry.getLong();
+            byte op = entry.get();
+            UTXO utxo = new UTXO(entry.getLong(), entry.getLong(), entry.getLong(), entry.getLong(),
+                    entry.getInt());
+            if (seq > checkpointSeq) {
+                boolean present = containsKey(utxo);
+                if (op == OP_PUT) {
+                    double value = Amounts.toCoins(entry.getLong());
+                    byte[] encoded = new byte[entry.getInt()];
+                    entry.get(encoded);
+                    overlay.put(utxo, OUTPUT_OWNER.new Output(value, addresses.get(internAddress(encoded))));
+                    if (!present)
+                        size++;
+                } else if (present) {
+                    overlay.put(utxo, REMOVED);
+                    size--;
+                }
+                nextSeq = seq + 1;
+            }
+            validEnd += 4 + length + 4;
+        }
+        wal.truncate(validEnd);
+        wal.position(validEnd);
+    }
+
+    /**
+     * Indexes the address records referenced by the stored records, live or freed, so that
+     * checkpoints after a reopen reuse them instead of writing the same keys again
+     */
+    private void indexAddresses() {
+        for (long b = 0; b < bucketCount; b++) {
+            for (long r = readMapped(bucketLink(b)); r != 0; r = readMapped(r + REC_NEXT))
+                addressAt(readMapped(r + REC_ADDRESS));
+        }
+        for (long r = readMapped(HDR_FREE); r != 0; r = readMapped(r + REC_NEXT))
+            addressAt(readMapped(r + REC_ADDRESS));
+    }
+
+    /** Applies a complete checkpoint journal left by a crash, or discards an incomplete one */
+    private void replayJournal() throws IOException {
+        if (!Files.exists(journalPath))
+            return;
+        byte[] bytes = Files.readAllBytes(journalPath);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length >= 24 && in.getInt(0) == JOURNAL_MAGIC) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            if ((int) crc.getValue() == in.getInt(bytes.length - 4)) {
+                in.position(4);
+                long end = in.getLong();
+                int words = in.getInt();
+                int blobs = in.getInt();
+                ensureCapacity(end);
+                for (int i = 0; i < words; i++)
+                    writeMapped(in.getLong(), in.getLong());
+                for (int i = 0; i < blobs; i++) {
+                    long offset = in.getLong();
+                    byte[] blob = new byte[in.getInt()];
+                    in.get(blob);
+                    writeMapped(offset, blob);
+                }
+                forceMapped();
+            }
+        }
+        Files.delete(journalPath);
+    }
+
+    // ---- checkpoint staging ----
+
+    private void stagePut(UTXO utxo, Transaction.Output txOut, HashMap<Integer, Long> newAddresses) {
+        long address = stageAddress(txOut.address, newAddresses);
+        long value = Amounts.toUnits(txOut.value);
+        long record = findRecord(utxo, null);
+        if (record != 0) {
+            stageWord(record + REC_VALUE, value);
+            stageWord(record + REC_ADDRESS, address);
+            return;
+        }
+        long link = bucketLink(bucket(utxo));
+        long free = readWord(HDR_FREE);
+        if (free != 0) {
+            record = free;
+            stageWord(HDR_FREE, readWord(free + REC_NEXT));
+        } else {
+            record = allocate(RECORD_BYTES, RECORD_BYTES);
+        }
+        stageWord(record + REC_NEXT, readWord(link));
+        stageWord(record + REC_INDEX, utxo.getIndex());
+        for (int i = 0; i < 4; i++)
+            stageWord(record + REC_HASH + 8 * i, utxo.getHashWord(i));
+        stageWord(record + REC_VALUE, value);
+        stageWord(record + REC_ADDRESS, address);
+        stageWord(link, record);
+        stageWord(HDR_LIVE, readWord(HDR_LIVE) + 1);
+    }
+
+    private void stageRemove(UTXO utxo) {
+        long[] link = new long[1];
+        long record = findRecord(utxo, link);
+        if (record == 0)
+            return;
+        stageWord(link[0], readWord(record + REC_NEXT));
+        stageWord(record + REC_NEXT, readWord(HDR_FREE));
+        stageWord(HDR_FREE, record);
+        stageWord(HDR_LIVE, readWord(HDR_LIVE) - 1);
+    }
+
+    /** @return the offset of the address record for {@code key}, staging a new one if needed */
+    private long stageAddress(PublicKey key, HashMap<Integer, Long> newAddresses) {
+        int id = addresses.intern(key);
+        Long offset = addressOffsets.get(id);
+        if (offset == null)
+            offset = newAddresses.get(id);
+        if (offset != null)
+            return offset;
+        byte[] encoded = addresses.getEncoded(id);
+        byte[] blob = new byte[8 + encoded.length];
+        ByteBuffer.wrap(blob).putLong(encoded.length).put(encoded);
+        long at = allocate(blob.length, 8);
+        pendingBlobs.put(at, blob);
+        newAddresses.put(id, at);
+        return at;
+    }
+
+    /** Reserves {@code length} bytes of the append region, never straddling a mapped segment */
+    private long allocate(int length, int alignment) {
+        long at = align(readWord(HDR_APPEND), alignment);
+        if ((at & (SEGMENT_BYTES - 1)) + length > SEGMENT_BYTES)
+            at = align(at, SEGMENT_BYTES);
+        stageWord(HDR_APPEND, at + length);
+        return at;
+    }
+
+    private void stageWord(long offset, long value) {
+        pendingWords.put(offset, value);
+    }
+
+    private void writeJournal() throws IOException {
+        int length = 24 + 16 * pendingWords.size() + 4;
+        for (byte[] blob : pendingBlobs.values())
+            length += 12 + blob.length;
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putInt(JOURNAL_MAGIC).putLong(readWord(HDR_APPEND));
+        out.putInt(pendingWords.size()).putInt(pendingBlobs.size());
+        for (Map.Entry<Long, Long> e : pendingWords.entrySet())
+            out.putLong(e.getKey()).putLong(e.getValue());
+        for (Map.Entry<Long, byte[]> e : pendingBlobs.entrySet())
+            out.putLong(e.getKey()).putInt(e.getValue().length).put(e.getValue());
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 0, out.position());
+        out.putInt((int) crc.getValue());
+        out.flip();
+        try (FileChannel journal = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining())
+                journal.write(out);
+            journal.force(true);
+        }
+    }
+
+    private void applyPending() {
+        for (Map.Entry<Long, byte[]> e : pendingBlobs.entrySet())
+            writeMapped(e.getKey(), e.getValue());
+        for (Map.Entry<Long, Long> e : pendingWords.entrySet())
+            writeMapped(e.getKey(), e.getValue());
+        forceMapped();
+    }
+
+    // ---- lookups ----
+
+    /**
+     * @return the offset of the record for {@code utxo}, or 0 if there is none; if {@code link} is
+     *         given, {@code link[0]} receives the offset of the word pointing at the record
+     */
+    private long findRecord(UTXO utxo, long[] link) {
+        long prev = bucketLink(bucket(utxo));
+        for (long r = readWord(prev); r != 0; prev = r + REC_NEXT, r = readWord(prev)) {
+            if (readWord(r + REC_INDEX) == utxo.getIndex()
+                    && readWord(r + REC_HASH) == utxo.getHashWord(0)
+                    && readWord(r + REC_HASH + 8) == utxo.getHashWord(1)
+                    && readWord(r + REC_HASH + 16) == utxo.getHashWord(2)
+                    && readWord(r + REC_HASH + 24) == utxo.getHashWord(3)) {
+                if (link != null)
+                    link[0] = prev;
+                return r;
+            }
+        }
+        return 0;
+    }
+
+    private UTXO keyAt(long record) {
+        return new UTXO(readWord(record + REC_HASH), readWord(record + REC_HASH + 8),
+                readWord(record + REC_HASH + 16), readWord(record + REC_HASH + 24),
+                (int) readWord(record + REC_INDEX));
+    }
+
+    private PublicKey addressAt(long offset) {
+        Integer id = addressesByOffset.get(offset);
+        if (id == null) {
+            byte[] encoded = new byte[(int) readMapped(offset)];
+            ByteBuffer view = segments[segment(offset)].duplicate();
+            view.position(position(offset) + 8);
+            view.get(encoded);
+            id = internAddress(encoded);
+            addressesByOffset.put(offset, id);
+            addressOffsets.put(id, offset);
+        }
+        return addresses.get(id);
+    }
+
+    private int internAddress(byte[] encoded) {
+        try {
+            return addresses.intern(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("stored address cannot be decoded", e);
+        }
+    }
+
+    private long bucket(UTXO utxo) {
+        int h = utxo.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & (bucketCount - 1);
+    }
+
+    private static long bucketLink(long bucket) {
+        return HEADER_BYTES + 8 * bucket;
+    }
+
+    private static void checkKey(UTXO utxo) {
+        if (!utxo.hasPackedHash())
+            throw new IllegalArgumentException("only 32-byte transaction hashes can be stored");
+    }
+
+    // ---- WAL ----
+
+    private void log(byte op, UTXO utxo, long value, PublicKey address) {
+        byte[] encoded = op == OP_PUT ? addresses.getEncoded(address) : null;
+        int length = 8 + 1 + 32 + 4 + (op == OP_PUT ? 8 + 4 + encoded.length : 0);
+        ByteBuffer out = ByteBuffer.allocate(4 + length + 4);
+        out.putInt(length).putLong(nextSeq++).put(op);
+        for (int i = 0; i < 4; i++)
+            out.putLong(utxo.getHashWord(i));
+        out.putInt(utxo.getIndex());
+        if (op == OP_PUT)
+            out.putLong(value).putInt(encoded.length).put(encoded);
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 4, length);
+        out.putInt((int) crc.getValue());
+        out.flip();
+        try {
+            while (out.hasRemaining())
+                wal.write(out);
+            if (syncEveryWrite)
+                wal.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void maybeCheckpoint() {
+        if (overlay.size() < checkpointInterval)
+            return;
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---- mapped file access ----
+
+    /** Reads a word as the checkpoint in progress will have left it */
+    private long readWord(long offset) {
+        Long pending = pendingWords.get(offset);
+        return pending != null ? pending : readMapped(offset);
+    }
+
+    private long readMapped(long offset) {
+        return segments[segment(offset)].getLong(position(offset));
+    }
+
+    private void writeMapped(long offset, long value) {
+        segments[segment(offset)].putLong(position(offset), value);
+    }
+
+    private void writeMapped(long offset, byte[] bytes) {
+        ByteBuffer view = segments[segment(offset)].duplicate();
+        view.position(position(offset));
+        view.put(bytes);
+    }
+
+    private void forceMapped() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    /** Grows the data file, doubling it, until it holds {@code end} bytes */
+    private void ensureCapacity(long end) throws IOException {
+        if (end <= fileSize)
+            return;
+        long newSize = fileSize;
+        while (newSize < end)
+            newSize *= 2;
+        map(newSize);
+    }
+
+    private void map(long newSize) throws IOException {
+        if (data.size() < newSize) {
+            data.write(ByteBuffer.allocate(1), newSize - 1);
+        }
+        fileSize = newSize;
+        int count = (int) ((newSize + SEGMENT_BYTES - 1) >>> SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[count];
+        for (int s = 0; s < count; s++) {
+            long start = (long) s << SEGMENT_SHIFT;
+            segments[s] = data.map(FileChannel.MapMode.READ_WRITE, start,
+                    Math.min(SEGMENT_BYTES, newSize - start));
+        }
+    }
+
+    private static int segment(long offset) {
+        return (int) (offset >>> SEGMENT_SHIFT);
+    }
+
+    private static int position(long offset) {
+        return (int) (offset & (SEGMENT_BYTES - 1));
+    }
+
+    private static long align(long offset, long alignment) {
+        return (offset + alignment - 1) & -alignment;
+    }
+}
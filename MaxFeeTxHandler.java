@@ -1,10 +1,31 @@
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class MaxFeeTxHandler {
 
+    /** How {@code handleTxs} chooses the transactions it accepts */
+    public enum Mode {
+        /** Highest positive fee first; see {@code GreedyFeeSelector} */
+        GREEDY,
+        /** Largest total fee, searched within a time budget; see {@code ExactFeeSolver} */
+        EXACT,
+        /** Highest fee of a transaction and its pending ancestors; see {@code AncestorPackageSelector} */
+        ANCESTOR_PACKAGE,
+        /** Highest fee per byte first, within a block size limit; see {@code FeeRateSelector} */
+        FEE_RATE,
+        /** Best selection found within a time budget; see {@code AnytimeFeeSelector} */
+        ANYTIME
+    }
+
     private UTXOPool utxoPool;
+    private TxValidator validator;
+    /** Changes made to {@code utxoPool} by the most recent {@code handleTxs} call */
+    private UTXOUndo lastUndo = new UTXOUndo();
+    private GreedyFeeSelector selector;
+    private ExactFeeSolver exactSolver;
+    private AncestorPackageSelector packageSelector;
+    private FeeRateSelector feeRateSelector;
+    private AnytimeFeeSelector anytimeSelector;
+    private Mode mode = Mode.GREEDY;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -12,136 +33,128 @@ public class MaxFeeTxHandler {
      * UTXOPool(UTXOPool uPool) constructor.
      */
     public MaxFeeTxHandler(UTXOPool utxoPool) {
-        this.utxoPool = new UTXOPool(utxoPool);
+        this(utxoPool, SignatureCache.getShared());
     }
 
     /**
-     * @return true if:
-     * (1) all outputs claimed by {@code tx} are in the current UTXO pool,
-     * (2) the signatures on each input of {@code tx} are valid,
-     * (3) no UTXO is claimed multiple times by {@code tx},
-     * (4) all of {@code tx}s output values are non-negative, and
-     * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its
-     * output values; and false otherwise.
+     * Creates a public ledger over a copy of {@code utxoPool} that looks up and records verified
+     * signatures in {@code signatureCache}, which may be shared with other handlers and epochs.
      */
-    public boolean isValidTx(Transaction tx) {
-        HashSet<UTXO> claimedUTXOs = new HashSet<>();
-        double inputSum = 0;
-        double outputSum = 0;
+    public MaxFeeTxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
+        this(utxoPool, signatureCache, null);
+    }
 
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+    /**
+     * Creates a public ledger over a copy of {@code utxoPool} that spreads signature verification,
+     * and the greedy selector's up-front validation of the epoch, over {@code executor}, or does
+     * both on the calling thread if it is null.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, SignatureCache signatureCache, ForkJoinPool executor) {
+        this.utxoPool = new UTXOPool(utxoPool);
+        this.validator = new TxValidator(this.utxoPool, signatureCache, executor);
+        this.selector = new GreedyFeeSelector(this.utxoPool, validator, executor);
+        this.exactSolver = new ExactFeeSolver(this.utxoPool, validator);
+        this.packageSelector = new AncestorPackageSelector(this.utxoPool, validator);
+        this.feeRateSelector = new FeeRateSelector(this.utxoPool, validator);
+        this.anytimeSelector = new AnytimeFeeSelector(this.utxoPool, validator);
+    }
 
-            // (1) All outputs claimed by tx are in the current UTXO pool
-            if (!utxoPool.contains(utxo)) {
-                return false;
-            }
+    /** Sets how later {@code handleTxs} calls choose transactions; {@code GREEDY} by default */
+    public void setMode(Mode mode) {
+        if (mode == null)
+            throw new IllegalArgumentException("null mode");
+        this.mode = mode;
+    }
 
-            Transaction.Output prevOutput = utxoPool.getTxOutput(utxo);
+    /** @return how {@code handleTxs} chooses transactions */
+    public Mode getMode() {
+        return mode;
+    }
 
-            // (2) The signatures on each input of tx are valid
-            if (!Crypto.verifySignature(prevOutput.address, tx.getRawDataToSign(i), input.signature)) {
-                return false;
-            }
+    /** @return the solver used in {@code EXACT} mode, to set its time budget and size limit */
+    public ExactFeeSolver getExactSolver() {
+        return exactSolver;
+    }
 
-            // (3) No UTXO is claimed multiple times by tx
-            if (claimedUTXOs.contains(utxo)) {
-                return false;
-            }
-            claimedUTXOs.add(utxo);
+    /** @return the selector used in {@code ANCESTOR_PACKAGE} mode, to set its ancestor limit */
+    public AncestorPackageSelector getPackageSelector() {
+        return packageSelector;
+    }
 
-            inputSum += prevOutput.value;
-        }
+    /** @return the selector used in {@code FEE_RATE} mode, to set its block size limit */
+    public FeeRateSelector getFeeRateSelector() {
+        return feeRateSelector;
+    }
 
-        for (Transaction.Output output : tx.getOutputs()) {
-            // (4) All of tx's output values are non-negative
-            if (output.value < 0) {
-                return false;
-            }
-            outputSum += output.value;
-        }
+    /**
+     * @return the selector used in {@code ANYTIME} mode, to set its time budget and read how close
+     *         its last selection came to the upper bound
+     */
+    public AnytimeFeeSelector getAnytimeSelector() {
+        return anytimeSelector;
+    }
 
-        // (5) The sum of tx's input values is >= the sum of its output values
-        if (inputSum < outputSum) {
-            return false;
-        }
+    /** @return the current UTXO pool, including the changes of every {@code handleTxs} call */
+    public UTXOPool getUTXOPool() {
+        return utxoPool;
+    }
 
-        return true;
+    /**
+     * @return the undo record of the most recent {@code handleTxs} call; passing it to
+     *         {@code getUTXOPool().undo} rolls that epoch back
+     */
+    public UTXOUndo getLastUndo() {
+        return lastUndo;
     }
 
     /**
-     * Helper method to calculate the fee of a transaction.
+     * @return true if:
+     * (1) all outputs claimed by {@code tx} are in the current UTXO pool,
+     * (2) the signatures on each input of {@code tx} are valid,
+     * (3) no UTXO is claimed multiple times by {@code tx},
+     * (4) all of {@code tx}s output values are non-negative, and
+     * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its
+     * output values; and false otherwise.
      */
-    private double calculateFee(Transaction tx) {
-        double inputSum = 0;
-        double outputSum = 0;
-
-        for (Transaction.Input input : tx.getInputs()) {
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-            // We assume the tx is valid, so the UTXO will be in the pool
-            if (utxoPool.contains(utxo)) {
-                 inputSum += utxoPool.getTxOutput(utxo).value;
-            }
-        }
+    public boolean isValidTx(Transaction tx) {
+        return validator.isValidTx(tx);
+    }
 
-        for (Transaction.Output output : tx.getOutputs()) {
-            outputSum += output.value;
-        }
+    /**
+     * @return the outcome of checking {@code tx} against the rules of {@code isValidTx}: VALID, or
+     *         the reason it is rejected
+     */
+    public ValidationResult validate(Transaction tx) {
+        return validator.validate(tx);
+    }
 
-        return inputSum - outputSum;
+    /** @return the counters and stage timings of every validation done by this handler */
+    public ValidationMetrics getValidationMetrics() {
+        return validator.getMetrics();
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions that
      * maximizes the total transaction fees, and updating the current UTXO pool as appropriate.
+     * How transactions are chosen depends on the mode: greedily by highest positive fee by default,
+     * by {@code ExactFeeSolver} in {@code EXACT} mode, by ancestor package fee in
+     * {@code ANCESTOR_PACKAGE} mode, by fee per byte within a size limit in {@code FEE_RATE} mode, or
+     * by {@code AnytimeFeeSelector} within a time budget in {@code ANYTIME} mode.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
-        Set<Transaction> remainingTxs = new HashSet<>();
-        for (Transaction tx : possibleTxs) {
-            remainingTxs.add(tx);
-        }
-
-        while (true) {
-            Transaction bestTx = null;
-            double maxFee = 0;
-
-            // Find the valid transaction with the highest fee
-            for (Transaction tx : remainingTxs) {
-                if (isValidTx(tx)) {
-                    double fee = calculateFee(tx);
-                    if (fee > maxFee) {
-                        maxFee = fee;
-                        bestTx = tx;
-                    }
-                }
-            }
-            
-            // If no valid transaction can be found, we are done
-            if (bestTx == null) {
-                break;
-            }
-
-            // Add the best transaction to our list and update the state
-            acceptedTxs.add(bestTx);
-            remainingTxs.remove(bestTx);
-
-            // Update the UTXO pool: remove spent outputs
-            for (Transaction.Input input : bestTx.getInputs()) {
-                UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-                utxoPool.removeUTXO(utxo);
-            }
-
-            // Update the UTXO pool: add new unspent outputs
-            for (int i = 0; i < bestTx.numOutputs(); i++) {
-                Transaction.Output output = bestTx.getOutput(i);
-                UTXO utxo = new UTXO(bestTx.getHash(), i);
-                utxoPool.addUTXO(utxo, output);
-            }
+        lastUndo = new UTXOUndo();
+        switch (mode) {
+        case EXACT:
+            return exactSolver.select(possibleTxs, lastUndo);
+        case ANCESTOR_PACKAGE:
+            return packageSelector.select(possibleTxs, lastUndo);
+        case FEE_RATE:
+            return feeRateSelector.select(possibleTxs, lastUndo);
+        case ANYTIME:
+            return anytimeSelector.select(possibleTxs, lastUndo);
+        default:
+            return selector.select(possibleTxs, lastUndo);
         }
-        
-        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
     }
-}
\ No newline at end of file
+}
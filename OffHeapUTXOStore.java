@@ -0,0 +1,249 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A {@code UTXOStore} that keeps its entries outside the Java heap, in an open-addressing hash
+ * table of fixed-width slots held in direct {@code ByteBuffer}s. A slot is {@value #SLOT_BYTES}
+ * bytes:
+ *
+ * <pre>
+ *   0..31  transaction hash
+ *  32..35  output index
+ *  36..39  address id + 1, or 0 for an empty slot and -1 for a removed one
+ *  40..47  output value in {@code Amounts} units
+ * </pre>
+ *
+ * Addresses are stored as their id in the shared {@code AddressRegistry}, so each distinct public
+ * key is held once however many outputs pay to it. Collisions are resolved by linear probing; removals leave
+ * tombstones that are dropped when the table is rebuilt. The table is split into chunks of at most
+ * {@value #CHUNK_SLOTS} slots so that it can grow past the 2 GB limit of a single buffer.
+ *
+ * Only UTXOs with 32-byte transaction hashes can be stored; {@code put} rejects any other length,
+ * and values that are not a whole number of {@code Amounts} units, so that every value reads back
+ * exactly as stored, as from the in-memory stores. {@code get} builds a fresh
+ * {@code Transaction.Output} on every call, so outputs read back are equal in address and value to
+ * the ones stored but are not the same objects.
+ */
+public class OffHeapUTXOStore implements UTXOStore {
+
+    private static final int SLOT_BYTES = 48;
+    private static final int INDEX_OFFSET = 32;
+    private static final int ADDRESS_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+    private static final int MIN_CAPACITY = 16;
+    /** Rebuild once live entries plus tombstones exceed this fraction of the slots */
+    private static final double MAX_LOAD = 0.7;
+
+    /** Owner of the {@code Transaction.Output} objects built by {@code get} */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    private ByteBuffer[] chunks;
+    private int capacity;
+    private int size;
+    private int tombstones;
+
+    private final AddressRegistry addresses = AddressRegistry.getShared();
+
+    /** Creates an empty store */
+    public OffHeapUTXOStore() {
+        this(MIN_CAPACITY);
+    }
+
+    /** Creates an empty store sized to hold {@code expectedSize} entries without growing */
+    public OffHeapUTXOStore(int expectedSize) {
+        allocate(tableCapacity(expectedSize));
+    }
+
+    /** Creates a copy of {@code source}, allocating its table once at the source's capacity */
+    private OffHeapUTXOStore(OffHeapUTXOStore source) {
+        allocate(source.capacity);
+        for (int c = 0; c < chunks.length; c++) {
+            ByteBuffer src = source.chunks[c].duplicate();
+            src.clear();
+            chunks[c].put(src);
+            chunks[c].clear();
+        }
+        size = source.size;
+        tombstones = source.tombstones;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (!utxo.hasPackedHash())
+            throw new IllegalArgumentException("only 32-byte transaction hashes can be stored off-heap");
+        long value = units(txOut.value);
+        if (size + tombstones + 1 > capacity * MAX_LOAD)
+            rebuild(tableCapacity(size + 1));
+
+        long slot = find(utxo);
+        if (slot < 0) {
+            slot = insertionSlot(utxo);
+            if (addressField(slot) == REMOVED)
+                tombstones--;
+            size++;
+            ByteBuffer chunk = chunk(slot);
+            int base = offset(slot);
+            for (int i = 0; i < 4; i++)
+                chunk.putLong(base + 8 * i, utxo.getHashWord(i));
+            chunk.putInt(base + INDEX_OFFSET, utxo.getIndex());
+        }
+        chunk(slot).putInt(offset(slot) + ADDRESS_OFFSET, addresses.intern(txOut.address) + 1);
+        chunk(slot).putLong(offset(slot) + VALUE_OFFSET, value);
+    }
+
+    public void remove(UTXO utxo) {
+        long slot = find(utxo);
+        if (slot < 0)
+            return;
+        chunk(slot).putInt(offset(slot) + ADDRESS_OFFSET, REMOVED);
+        size--;
+        tombstones++;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        long slot = find(utxo);
+        if (slot < 0)
+            return null;
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+        return OUTPUT_OWNER.new Output(Amounts.toCoins(chunk.getLong(base + VALUE_OFFSET)),
+                addresses.get(chunk.getInt(base + ADDRESS_OFFSET) - 1));
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return find(utxo) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        for (long slot = 0; slot < capacity; slot++) {
+            if (addressField(slot) > 0)
+                keys.add(keyAt(slot));
+        }
+        return keys;
+    }
+
+    /** Copies the table into freshly allocated direct buffers; O(n) */
+    public UTXOStore copy() {
+        return new OffHeapUTXOStore(this);
+    }
+
+    /** @return the slot holding {@code utxo}, or -1 if it is not stored */
+    private long find(UTXO utxo) {
+        if (!utxo.hasPackedHash())
+            return -1;
+        long mask = capacity - 1;
+        for (long slot = home(utxo);; slot = (slot + 1) & mask) {
+            int address = addressField(slot);
+            if (address == EMPTY)
+                return -1;
+            if (address != REMOVED && matches(slot, utxo))
+                return slot;
+        }
+    }
+
+    /** @return the first empty or removed slot on the probe sequence of {@code utxo} */
+    private long insertionSlot(UTXO utxo) {
+        long mask = capacity - 1;
+        for (long slot = home(utxo);; slot = (slot + 1) & mask) {
+            if (addressField(slot) <= 0)
+                return slot;
+        }
+    }
+
+    private long home(UTXO utxo) {
+        int h = utxo.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & (capacity - 1);
+    }
+
+    private boolean matches(long slot, UTXO utxo) {
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+        return chunk.getInt(base + INDEX_OFFSET) == utxo.getIndex()
+                && chunk.getLong(base) == utxo.getHashWord(0)
+                && chunk.getLong(base + 8) == utxo.getHashWord(1)
+                && chunk.getLong(base + 16) == utxo.getHashWord(2)
+                && chunk.getLong(base + 24) == utxo.getHashWord(3);
+    }
+
+    private UTXO keyAt(long slot) {
+        ByteBuffer chunk = chunk(slot);
+        int base = offset(slot);
+        return new UTXO(chunk.getLong(base), chunk.getLong(base + 8), chunk.getLong(base + 16),
+                chunk.getLong(base + 24), chunk.getInt(base + INDEX_OFFSET));
+    }
+
+    private int addressField(long slot) {
+        return chunk(slot).getInt(offset(slot) + ADDRESS_OFFSET);
+    }
+
+    /** Moves every live entry into a new table of {@code newCapacity} slots, dropping tombstones */
+    private void rebuild(int newCapacity) {
+        ByteBuffer[] oldChunks = chunks;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        tombstones = 0;
+        byte[] record = new byte[SLOT_BYTES];
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer src = oldChunks[(int) (slot >>> CHUNK_SHIFT)];
+            int base = (int) (slot & (CHUNK_SLOTS - 1)) * SLOT_BYTES;
+            if (src.getInt(base + ADDRESS_OFFSET) <= 0)
+                continue;
+            ByteBuffer view = src.duplicate();
+            view.position(base);
+            view.get(record);
+            UTXO key = new UTXO(src.getLong(base), src.getLong(base + 8), src.getLong(base + 16),
+                    src.getLong(base + 24), src.getInt(base + INDEX_OFFSET));
+            long dst = insertionSlot(key);
+            ByteBuffer out = chunk(dst).duplicate();
+            out.position(offset(dst));
+            out.put(record);
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        int slotsPerChunk = Math.min(newCapacity, CHUNK_SLOTS);
+        chunks = new ByteBuffer[newCapacity / slotsPerChunk];
+        for (int c = 0; c < chunks.length; c++)
+            chunks[c] = ByteBuffer.allocateDirect(slotsPerChunk * SLOT_BYTES);
+    }
+
+    /** @return the power-of-two slot count that keeps {@code entries} under the load limit */
+    private static int tableCapacity(int entries) {
+        int needed = (int) Math.min(1 << 30, (long) Math.ceil((entries + 1) / MAX_LOAD) * 2);
+        int capacity = MIN_CAPACITY;
+        while (capacity < needed)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /** @return {@code value} in units, if it is a whole number of them */
+    private static long units(double value) {
+        try {
+            return Amounts.toUnitsExact(value);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("value cannot be stored exactly: " + value, e);
+        }
+    }
+
+    private ByteBuffer chunk(long slot) {
+        return chunks[(int) (slot >>> CHUNK_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & (CHUNK_SLOTS - 1)) * SLOT_BYTES;
+    }
+}
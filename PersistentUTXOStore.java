@@ -0,0 +1,272 @@
+import java.util.ArrayList;
+
+/**
+ * A {@code UTXOStore} backed by a persistent hash array mapped trie. Nodes are never modified once
+ * built: an update copies the path from the root to the changed entry, at most seven nodes of up
+ * to 32 slots, and shares everything else with the previous version. {@code copy} therefore only
+ * copies the root reference and costs O(1), and any number of copies can be read from different
+ * threads while each is updated on its own.
+ *
+ * Keys are spread by their cached {@code UTXO.hashCode}, five bits per level. Entries whose 32-bit
+ * hashes are equal end up together in a collision node.
+ */
+public class PersistentUTXOStore implements UTXOStore {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    /** Root of the trie, always a bitmap node */
+    private Object root;
+    private int size;
+
+    /** Creates an empty store */
+    public PersistentUTXOStore() {
+        this(EMPTY, 0);
+    }
+
+    private PersistentUTXOStore(Object root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        boolean[] added = new boolean[1];
+        root = put(root, 0, spread(utxo.hashCode()), new Leaf(utxo, txOut), added);
+        if (added[0])
+            size++;
+    }
+
+    public void remove(UTXO utxo) {
+        Object newRoot = remove(root, 0, spread(utxo.hashCode()), utxo);
+        if (newRoot != root) {
+            size--;
+            if (newRoot instanceof Leaf) {
+                Leaf last = (Leaf) newRoot;
+                newRoot = put(EMPTY, 0, spread(last.key.hashCode()), last, new boolean[1]);
+            }
+            root = newRoot == null ? EMPTY : newRoot;
+        }
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        Leaf leaf = find(utxo);
+        return leaf == null ? null : leaf.value;
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        return find(utxo) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        collect(root, keys);
+        return keys;
+    }
+
+    /** Shares the whole trie with the new store in O(1) */
+    public UTXOStore copy() {
+        return new PersistentUTXOStore(root, size);
+    }
+
+    private Leaf find(UTXO key) {
+        int hash = spread(key.hashCode());
+        Object node = root;
+        for (int shift = 0;; shift += BITS) {
+            if (node instanceof BitmapNode) {
+                BitmapNode bn = (BitmapNode) node;
+                int bit = 1 << ((hash >>> shift) & MASK);
+                if ((bn.bitmap & bit) == 0)
+                    return null;
+                node = bn.array[Integer.bitCount(bn.bitmap & (bit - 1))];
+            } else if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.key.equals(key) ? leaf : null;
+            } else {
+                CollisionNode cn = (CollisionNode) node;
+                if (cn.hash != hash)
+                    return null;
+                for (Leaf leaf : cn.leaves) {
+                    if (leaf.key.equals(key))
+                        return leaf;
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the node replacing {@code node} once {@code leaf} is stored below it; sets
+     *         {@code added[0]} if the key was not present before
+     */
+    private static Object put(Object node, int shift, int hash, Leaf leaf, boolean[] added) {
+        if (node instanceof BitmapNode) {
+            BitmapNode bn = (BitmapNode) node;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int idx = Integer.bitCount(bn.bitmap & (bit - 1));
+            if ((bn.bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] array = new Object[bn.array.length + 1];
+                System.arraycopy(bn.array, 0, array, 0, idx);
+                array[idx] = leaf;
+                System.arraycopy(bn.array, idx, array, idx + 1, bn.array.length - idx);
+                return new BitmapNode(bn.bitmap | bit, array);
+            }
+            Object child = bn.array[idx];
+            Object newChild = put(child, shift + BITS, hash, leaf, added);
+            if (newChild == child)
+                return bn;
+            Object[] array = bn.array.clone();
+            array[idx] = newChild;
+            return new BitmapNode(bn.bitmap, array);
+        } else if (node instanceof Leaf) {
+            Leaf existing = (Leaf) node;
+            if (existing.key.equals(leaf.key))
+                return existing.value == leaf.value ? existing : leaf;
+            added[0] = true;
+            return merge(existing, spread(existing.key.hashCode()), leaf, hash, shift);
+        } else {
+            CollisionNode cn = (CollisionNode) node;
+            if (cn.hash != hash) {
+                // a collision node above the last level shares its slot with a different hash
+                BitmapNode wrapper = new BitmapNode(1 << ((cn.hash >>> shift) & MASK),
+                        new Object[] { cn });
+                return put(wrapper, shift, hash, leaf, added);
+            }
+            for (int i = 0; i < cn.leaves.length; i++) {
+                if (cn.leaves[i].key.equals(leaf.key)) {
+                    if (cn.leaves[i].value == leaf.value)
+                        return cn;
+                    Leaf[] leaves = cn.leaves.clone();
+                    leaves[i] = leaf;
+                    return new CollisionNode(hash, leaves);
+                }
+            }
+            added[0] = true;
+            Leaf[] leaves = new Leaf[cn.leaves.length + 1];
+            System.arraycopy(cn.leaves, 0, leaves, 0, cn.leaves.length);
+            leaves[cn.leaves.length] = leaf;
+            return new CollisionNode(hash, leaves);
+        }
+    }
+
+    /** @return a node holding two leaves with different keys, starting at level {@code shift} */
+    private static Object merge(Leaf a, int hashA, Leaf b, int hashB, int shift) {
+        if (hashA == hashB)
+            return new CollisionNode(hashA, new Leaf[] { a, b });
+        int fragA = (hashA >>> shift) & MASK;
+        int fragB = (hashB >>> shift) & MASK;
+        if (fragA == fragB)
+            return new BitmapNode(1 << fragA, new Object[] { merge(a, hashA, b, hashB, shift + BITS) });
+        Object[] array = fragA < fragB ? new Object[] { a, b } : new Object[] { b, a };
+        return new BitmapNode(1 << fragA | 1 << fragB, array);
+    }
+
+    /**
+     * @return {@code node} itself if {@code key} is absent, otherwise what replaces it: null if
+     *         nothing is left, a bare leaf if one entry is left, or a smaller node
+     */
+    private static Object remove(Object node, int shift, int hash, UTXO key) {
+        if (node instanceof BitmapNode) {
+            BitmapNode bn = (BitmapNode) node;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bn.bitmap & bit) == 0)
+                return bn;
+            int idx = Integer.bitCount(bn.bitmap & (bit - 1));
+            Object child = bn.array[idx];
+            Object newChild = remove(child, shift + BITS, hash, key);
+            if (newChild == child)
+                return bn;
+            if (newChild == null) {
+                if (bn.array.length == 1)
+                    return null;
+                if (bn.array.length == 2 && bn.array[1 - idx] instanceof Leaf)
+                    return bn.array[1 - idx];
+                Object[] array = new Object[bn.array.length - 1];
+                System.arraycopy(bn.array, 0, array, 0, idx);
+                System.arraycopy(bn.array, idx + 1, array, idx, array.length - idx);
+                return new BitmapNode(bn.bitmap & ~bit, array);
+            }
+            if (bn.array.length == 1 && newChild instanceof Leaf)
+                return newChild;
+            Object[] array = bn.array.clone();
+            array[idx] = newChild;
+            return new BitmapNode(bn.bitmap, array);
+        } else if (node instanceof Leaf) {
+            return ((Leaf) node).key.equals(key) ? null : node;
+        } else {
+            CollisionNode cn = (CollisionNode) node;
+            if (cn.hash != hash)
+                return cn;
+            for (int i = 0; i < cn.leaves.length; i++) {
+                if (cn.leaves[i].key.equals(key)) {
+                    if (cn.leaves.length == 2)
+                        return cn.leaves[1 - i];
+                    Leaf[] leaves = new Leaf[cn.leaves.length - 1];
+                    System.arraycopy(cn.leaves, 0, leaves, 0, i);
+                    System.arraycopy(cn.leaves, i + 1, leaves, i, leaves.length - i);
+                    return new CollisionNode(hash, leaves);
+                }
+            }
+            return cn;
+        }
+    }
+
+    private static void collect(Object node, ArrayList<UTXO> keys) {
+        if (node instanceof BitmapNode) {
+            for (Object child : ((BitmapNode) node).array)
+                collect(child, keys);
+        } else if (node instanceof Leaf) {
+            keys.add(((Leaf) node).key);
+        } else {
+            for (Leaf leaf : ((CollisionNode) node).leaves)
+                keys.add(leaf.key);
+        }
+    }
+
+    /** Mixes all bits of {@code h} into the low ones consumed by the first levels */
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ h >>> 16;
+    }
+
+    private static final class Leaf {
+        final UTXO key;
+        final Transaction.Output value;
+
+        Leaf(UTXO key, Transaction.Output value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /** Inner node holding one slot, a leaf or a child node, per set bit of {@code bitmap} */
+    private static final class BitmapNode {
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+    }
+
+    /** Leaves whose keys have identical spread hashes */
+    private static final class CollisionNode {
+        final int hash;
+        final Leaf[] leaves;
+
+        CollisionNode(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+}
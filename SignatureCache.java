@@ -0,0 +1,196 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread-safe cache of signature verifications placed in front of
+ * {@code Crypto.verifySignature}. Entries are keyed on a SHA-256 digest of the encoded public key,
+ * the signed message and the signature, so a hit answers for exactly the triple that was checked
+ * before. Invalid signatures are remembered as well as valid ones, so a transaction with a bad
+ * signature that is proposed again, or checked again after {@code TxValidator.preverifySignatures},
+ * costs no second RSA check.
+ *
+ * The cache is split into independently locked segments, each evicting its least recently used
+ * entry once it is full. A single instance can be shared by several handlers and kept across
+ * epochs, so a transaction verified in the mempool is not verified again when it lands in a block.
+ */
+public class SignatureCache {
+
+    /** Number of entries held by {@code getShared()} */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final int SEGMENTS = 16;
+
+    private static final SignatureCache SHARED = new SignatureCache(DEFAULT_CAPACITY);
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                return null;
+            }
+        }
+    };
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final int capacity;
+
+    /** Creates a cache holding at most about {@code capacity} verification results */
+    public SignatureCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(perSegment);
+    }
+
+    /** @return the process-wide cache used by handlers that are not given one explicitly */
+    public static SignatureCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the same answer as {@code Crypto.verifySignature(pubKey, message, signature)},
+     *         consulting the cache first and remembering the answer for the triple
+     */
+    public boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
+        Key key = keyOf(pubKey, message, signature);
+        if (key == null)
+            return Crypto.verifySignature(pubKey, message, signature);
+        Segment segment = segments[(key.hash >>> 16 ^ key.hash) & (SEGMENTS - 1)];
+        synchronized (segment) {
+            Boolean cached = segment.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+        boolean valid = Crypto.verifySignature(pubKey, message, signature);
+        synchronized (segment) {
+            segment.put(key, valid);
+        }
+        return valid;
+    }
+
+    /** @return the number of entries this cache was created to hold */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of lookups answered from the cache */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of lookups that had to run a full verification */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of entries dropped to stay within capacity */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** @return the number of verification results currently held */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /** Removes every entry; the hit, miss and eviction counters are kept */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /** @return the digest key of the triple, or null if it cannot be cached */
+    private static Key keyOf(PublicKey pubKey, byte[] message, byte[] signature) {
+        MessageDigest md = SHA256.get();
+        if (md == null || pubKey == null || message == null || signature == null)
+            return null;
+        // the registry hands out a cached encoding instead of building a new one on every lookup
+        byte[] encodedKey = AddressRegistry.getShared().getEncoded(pubKey);
+        if (encodedKey == null)
+            return null;
+        // length-prefix each part so that different splits of the same bytes never collide
+        md.reset();
+        updateLength(md, encodedKey.length);
+        md.update(encodedKey);
+        updateLength(md, message.length);
+        md.update(message);
+        updateLength(md, signature.length);
+        md.update(signature);
+        return new Key(md.digest());
+    }
+
+    private static void updateLength(MessageDigest md, int length) {
+        md.update((byte) (length >>> 24));
+        md.update((byte) (length >>> 16));
+        md.update((byte) (length >>> 8));
+        md.update((byte) length);
+    }
+
+    /** An access-ordered map that drops its least recently used entry when over capacity */
+    private final class Segment extends LinkedHashMap<Key, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            if (size() <= capacity)
+                return false;
+            evictions.increment();
+            return true;
+        }
+    }
+
+    /** A SHA-256 digest compared by content, with its hash code taken from the leading bytes */
+    private static final class Key {
+        private final byte[] digest;
+        private final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16
+                    | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(digest, ((Key) other).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread-safe {@code UTXOStore} for validators that check and apply transactions from several
+ * threads at once. Entries are spread by UTXO hash over a fixed number of stripes, each a
+ * {@code HashMap} guarded by its own read-write lock, so threads touching different stripes never
+ * wait for each other and lookups in the same stripe proceed in parallel.
+ *
+ * {@code removeAll} holds the write locks of every stripe involved, taken in increasing stripe
+ * order so that concurrent callers cannot deadlock, while it checks and removes all the UTXOs
+ * claimed by a transaction. Of two transactions racing to spend the same output exactly one
+ * succeeds. {@code keys} and {@code copy} lock every stripe and so see a consistent state.
+ */
+public class StripedUTXOStore implements UTXOStore {
+
+    private final HashMap<UTXO, Transaction.Output>[] stripes;
+    private final ReentrantReadWriteLock[] locks;
+
+    /** Creates an empty store with {@code stripes} stripes, rounded up to a power of two */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public StripedUTXOStore(int stripes) {
+        if (stripes <= 0)
+            throw new IllegalArgumentException("stripe count must be positive: " + stripes);
+        int n = 1;
+        while (n < stripes)
+            n <<= 1;
+        this.stripes = new HashMap[n];
+        this.locks = new ReentrantReadWriteLock[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new HashMap<UTXO, Transaction.Output>();
+            this.locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        int s = stripe(utxo);
+        locks[s].writeLock().lock();
+        try {
+            stripes[s].put(utxo, txOut);
+        } finally {
+            locks[s].writeLock().unlock();
+        }
+    }
+
+    public void remove(UTXO utxo) {
+        int s = stripe(utxo);
+        locks[s].writeLock().lock();
+        try {
+            stripes[s].remove(utxo);
+        } finally {
+            locks[s].writeLock().unlock();
+        }
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        int s = stripe(utxo);
+        locks[s].readLock().lock();
+        try {
+            return stripes[s].get(utxo);
+        } finally {
+            locks[s].readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(UTXO utxo) {
+        int s = stripe(utxo);
+        locks[s].readLock().lock();
+        try {
+            return stripes[s].containsKey(utxo);
+        } finally {
+            locks[s].readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lockReadAll();
+        try {
+            int size = 0;
+            for (HashMap<UTXO, Transaction.Output> stripe : stripes)
+                size += stripe.size();
+            return size;
+        } finally {
+            unlockReadAll();
+        }
+    }
+
+    public ArrayList<UTXO> keys() {
+        lockReadAll();
+        try {
+            ArrayList<UTXO> keys = new ArrayList<UTXO>();
+            for (HashMap<UTXO, Transaction.Output> stripe : stripes)
+                keys.addAll(stripe.keySet());
+            return keys;
+        } finally {
+            unlockReadAll();
+        }
+    }
+
+    public UTXOStore copy() {
+        StripedUTXOStore copy = new StripedUTXOStore(stripes.length);
+        lockReadAll();
+        try {
+            for (int i = 0; i < stripes.length; i++)
+                copy.stripes[i].putAll(stripes[i]);
+        } finally {
+            unlockReadAll();
+        }
+        return copy;
+    }
+
+    /** Checks and removes all of {@code utxos} atomically with respect to every other operation */
+    public Transaction.Output[] removeAll(UTXO[] utxos) {
+        boolean[] involved = new boolean[stripes.length];
+        for (UTXO utxo : utxos)
+            involved[stripe(utxo)] = true;
+        for (int s = 0; s < stripes.length; s++) {
+            if (involved[s])
+                locks[s].writeLock().lock();
+        }
+        try {
+            Transaction.Output[] removed = new Transaction.Output[utxos.length];
+            HashSet<UTXO> seen = new HashSet<UTXO>();
+            for (int i = 0; i < utxos.length; i++) {
+                removed[i] = stripes[stripe(utxos[i])].get(utxos[i]);
+                if (removed[i] == null || !seen.add(utxos[i]))
+                    return null;
+            }
+            for (UTXO utxo : utxos)
+                stripes[stripe(utxo)].remove(utxo);
+            return removed;
+        } finally {
+            for (int s = stripes.length - 1; s >= 0; s--) {
+                if (involved[s])
+                    locks[s].writeLock().unlock();
+            }
+        }
+    }
+
+    private int stripe(UTXO utxo) {
+        int h = utxo.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & (stripes.length - 1);
+    }
+
+    private void lockReadAll() {
+        for (ReentrantReadWriteLock lock : locks)
+            lock.readLock().lock();
+    }
+
+    private void unlockReadAll() {
+        for (int s = locks.length - 1; s >= 0; s--)
+            locks[s].readLock().unlock();
+    }
+}
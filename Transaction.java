@@ -1,4 +1,6 @@
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.security.MessageDigest;
@@ -7,6 +9,19 @@ import java.security.PublicKey;
 
 public class Transaction {
 
+    /** Per-thread SHA-256 engine used by {@code finalize}, or null if the algorithm is missing */
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                x.printStackTrace(System.err);
+                return null;
+            }
+        }
+    };
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -47,6 +62,53 @@ public class Transaction {
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /**
+     * Cached encoding of {@code outputs} shared by every input's signing payload, or null until it
+     * is first needed. Outputs can be changed through their public fields and {@code getOutputs},
+     * so every use checks the cache against the current outputs and rebuilds it if they differ.
+     */
+    private volatile OutputsSection outputsSection;
+
+    /** An encoding of the outputs together with the outputs, values and addresses it encodes */
+    private static final class OutputsSection {
+        final byte[] bytes;
+        final Output[] outputs;
+        final long[] values;
+        final PublicKey[] addresses;
+
+        /** Encodes {@code outputs} as they are now */
+        OutputsSection(Output[] outputs) {
+            this.outputs = outputs;
+            values = new long[outputs.length];
+            addresses = new PublicKey[outputs.length];
+            AddressRegistry registry = AddressRegistry.getShared();
+            byte[][] encoded = new byte[outputs.length][];
+            int length = 0;
+            for (int i = 0; i < outputs.length; i++) {
+                values[i] = Double.doubleToRawLongBits(outputs[i].value);
+                addresses[i] = outputs[i].address;
+                encoded[i] = registry.getEncoded(addresses[i]);
+                length += Double.BYTES + encoded[i].length;
+            }
+            bytes = new byte[length];
+            int pos = 0;
+            for (int i = 0; i < outputs.length; i++)
+                pos = putOutput(bytes, pos, Double.longBitsToDouble(values[i]), encoded[i]);
+        }
+
+        /** @return true if {@code current} holds the same outputs, unchanged since encoding */
+        boolean encodes(ArrayList<Output> current) {
+            if (current.size() != outputs.length)
+                return false;
+            for (int i = 0; i < outputs.length; i++) {
+                Output op = current.get(i);
+                if (op != outputs[i] || Double.doubleToRawLongBits(op.value) != values[i]
+                        || op.address != addresses[i])
+                    return false;
+            }
+            return true;
+        }
+    }
 
     public Transaction() {
         inputs = new ArrayList<Input>();
@@ -86,86 +148,130 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        byte[] section = getOutputsSection();
+        byte[] sigD = new byte[inputPrefixLength(in) + section.length];
+        int pos = putInputPrefix(sigD, 0, in);
+        System.arraycopy(section, 0, sigD, pos, section.length);
         return sigD;
     }
 
+    /** @return the exact length in bytes of {@code getRawDataToSign(index)} */
+    public int getRawDataToSignLength(int index) {
+        return inputPrefixLength(inputs.get(index)) + getOutputsSection().length;
+    }
+
+    /**
+     * Writes the bytes of {@code getRawDataToSign(index)} into {@code dst} starting at its current
+     * position, independently of the buffer's byte order, and advances the position past them.
+     * 
+     * @return the number of bytes written
+     * @throws java.nio.BufferOverflowException if {@code dst} has fewer remaining bytes than
+     *         {@code getRawDataToSignLength(index)}
+     */
+    public int writeRawDataToSign(int index, ByteBuffer dst) {
+        Input in = inputs.get(index);
+        byte[] section = getOutputsSection();
+        int length = inputPrefixLength(in) + section.length;
+        if (dst.remaining() < length)
+            throw new BufferOverflowException();
+        if (in.prevTxHash != null)
+            dst.put(in.prevTxHash);
+        dst.putInt(dst.order() == ByteOrder.BIG_ENDIAN ? in.outputIndex
+                : Integer.reverseBytes(in.outputIndex));
+        dst.put(section);
+        return length;
+    }
+
+    /**
+     * @return the encoding of all outputs (value followed by encoded address, for each output) that
+     *         is shared by the signing payload of every input. It is reused for as long as no
+     *         output is added, removed, replaced or modified, which costs one pass over the outputs
+     *         per call; callers must not modify the returned array.
+     */
+    private byte[] getOutputsSection() {
+        OutputsSection section = outputsSection;
+        if (section == null || !section.encodes(outputs)) {
+            section = new OutputsSection(outputs.toArray(new Output[0]));
+            outputsSection = section;
+        }
+        return section.bytes;
+    }
+
+    private static int inputPrefixLength(Input in) {
+        return (in.prevTxHash == null ? 0 : in.prevTxHash.length) + Integer.BYTES;
+    }
+
+    /** Writes {@code prevTxHash} followed by the big-endian output index and returns the new offset */
+    private static int putInputPrefix(byte[] dst, int pos, Input in) {
+        if (in.prevTxHash != null) {
+            System.arraycopy(in.prevTxHash, 0, dst, pos, in.prevTxHash.length);
+            pos += in.prevTxHash.length;
+        }
+        return putInt(dst, pos, in.outputIndex);
+    }
+
+    /** Writes the big-endian IEEE 754 value followed by the address and returns the new offset */
+    private static int putOutput(byte[] dst, int pos, double value, byte[] address) {
+        long bits = Double.doubleToRawLongBits(value);
+        pos = putInt(dst, pos, (int) (bits >>> 32));
+        pos = putInt(dst, pos, (int) bits);
+        System.arraycopy(address, 0, dst, pos, address.length);
+        return pos + address.length;
+    }
+
+    private static int putInt(byte[] dst, int pos, int v) {
+        dst[pos] = (byte) (v >>> 24);
+        dst[pos + 1] = (byte) (v >>> 16);
+        dst[pos + 2] = (byte) (v >>> 8);
+        dst[pos + 3] = (byte) v;
+        return pos + 4;
+    }
+
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        int length = getOutputsSection().length;
+        for (Input in : inputs)
+            length += inputPrefixLength(in) + (in.signature == null ? 0 : in.signature.length);
+        byte[] tx = new byte[length];
+        int pos = 0;
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
+            pos = putInputPrefix(tx, pos, in);
+            if (in.signature != null) {
+                System.arraycopy(in.signature, 0, tx, pos, in.signature.length);
+                pos += in.signature.length;
             }
-
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
+        byte[] section = getOutputsSection();
+        System.arraycopy(section, 0, tx, pos, section.length);
         return tx;
     }
 
+    /**
+     * Sets the hash to the SHA-256 digest of {@code getRawTx()}. The digest is fed one input at a
+     * time followed by the cached outputs section, so the raw transaction is never materialized.
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+        MessageDigest md = SHA256.get();
+        if (md == null)
+            return;
+        md.reset();
+        byte[] outputIndex = new byte[Integer.BYTES];
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            putInt(outputIndex, 0, in.outputIndex);
+            md.update(outputIndex);
+            if (in.signature != null)
+                md.update(in.signature);
         }
+        md.update(getOutputsSection());
+        hash = md.digest();
     }
 
     public void setHash(byte[] h) {
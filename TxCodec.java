@@ -0,0 +1,350 @@
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Self-delimiting binary encoding of a finalized {@code Transaction}, which unlike
+ * {@code getRawTx} can be parsed back. A frame is laid out as
+ *
+ * <pre>
+ * varint  length of the rest of the frame
+ * 32      transaction hash
+ * varint  number of inputs, then per input:
+ *         32 previous transaction hash, 4 output index, varint signature length, signature
+ * varint  number of outputs, then per output:
+ *         8 IEEE 754 value, varint address length, X.509 encoded address
+ * </pre>
+ *
+ * Fixed-width fields are big-endian whatever the buffer's byte order, and varints are unsigned
+ * LEB128. A missing signature is written with length 0. Hashes must be 32 bytes long.
+ *
+ * {@code View} is a flyweight over an encoded frame: it records where each input and output starts
+ * and reads fields straight out of the buffer, so a stream of frames can be scanned, and the UTXOs
+ * it claims looked up, without materializing a {@code Transaction}.
+ */
+public class TxCodec {
+
+    /** Length of every hash in a frame */
+    public static final int HASH_LENGTH = 32;
+
+    private TxCodec() {
+    }
+
+    /** @return the length of the frame {@code encode} writes for {@code tx} */
+    public static int encodedLength(Transaction tx) {
+        byte[][] addresses = encodeAddresses(tx);
+        int body = bodyLength(tx, addresses);
+        return varintLength(body) + body;
+    }
+
+    /**
+     * Writes the frame of {@code tx} into {@code dst} at its current position and advances the
+     * position past it.
+     *
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if {@code tx} is not finalized or a hash is not 32 bytes long
+     * @throws BufferOverflowException if {@code dst} has fewer remaining bytes than the frame length;
+     *         nothing is written then
+     */
+    public static int encode(Transaction tx, ByteBuffer dst) {
+        byte[] hash = tx.getHash();
+        checkHash(hash, "transaction hash");
+        for (Transaction.Input in : tx.getInputs())
+            checkHash(in.prevTxHash, "previous transaction hash");
+        byte[][] addresses = encodeAddresses(tx);
+        int body = bodyLength(tx, addresses);
+        int length = varintLength(body) + body;
+        if (dst.remaining() < length)
+            throw new BufferOverflowException();
+
+        putVarint(dst, body);
+        dst.put(hash);
+        putVarint(dst, tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            dst.put(in.prevTxHash);
+            dst.putInt(bigEndian(dst, in.outputIndex));
+            if (in.signature == null) {
+                putVarint(dst, 0);
+            } else {
+                putVarint(dst, in.signature.length);
+                dst.put(in.signature);
+            }
+        }
+        putVarint(dst, tx.numOutputs());
+        for (int o = 0; o < addresses.length; o++) {
+            dst.putLong(bigEndian(dst, Double.doubleToRawLongBits(tx.getOutput(o).value)));
+            putVarint(dst, addresses[o].length);
+            dst.put(addresses[o]);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes the frame at the current position of {@code src} into a new {@code Transaction} and
+     * advances the position past it. The hash is taken from the frame rather than recomputed.
+     *
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static Transaction decode(ByteBuffer src) {
+        View view = new View().wrap(src, src.position());
+        Transaction tx = view.toTransaction();
+        src.position(src.position() + view.length());
+        return tx;
+    }
+
+    /**
+     * A reusable read-only view of one frame. {@code wrap} parses the frame's layout; the accessors
+     * then read single fields from the underlying buffer, which must not change while it is viewed.
+     */
+    public static final class View {
+        private ByteBuffer buf;
+        private int start;
+        private int end;
+        private int hashOffset;
+        private int numInputs;
+        private int numOutputs;
+        private int[] inputOffsets = new int[4];
+        private int[] outputOffsets = new int[4];
+
+        /** Position after the varint most recently read by {@code readVarint} */
+        private int cursor;
+
+        /**
+         * Points this view at the frame starting at absolute {@code position} of {@code src}. The
+         * buffer's position is not changed.
+         *
+         * @return this view
+         * @throws IllegalArgumentException if the frame is malformed or runs past the buffer's limit
+         */
+        public View wrap(ByteBuffer src, int position) {
+            buf = src;
+            start = position;
+            int body = readVarint(position);
+            hashOffset = cursor;
+            end = hashOffset + body;
+            if (body < 0 || end > src.limit() || end < hashOffset)
+                throw new IllegalArgumentException("frame runs past the buffer");
+
+            numInputs = readVarint(hashOffset + HASH_LENGTH);
+            if (numInputs < 0 || numInputs > (end - cursor) / (HASH_LENGTH + Integer.BYTES + 1))
+                throw new IllegalArgumentException("input count does not fit in the frame");
+            if (inputOffsets.length < numInputs)
+                inputOffsets = new int[Math.max(numInputs, 2 * inputOffsets.length)];
+            for (int i = 0; i < numInputs; i++) {
+                inputOffsets[i] = cursor;
+                int signatureLength = readVarint(cursor + HASH_LENGTH + Integer.BYTES);
+                cursor += signatureLength;
+                checkBounds(signatureLength);
+            }
+
+            numOutputs = readVarint(cursor);
+            if (numOutputs < 0 || numOutputs > (end - cursor) / (Long.BYTES + 1))
+                throw new IllegalArgumentException("output count does not fit in the frame");
+            if (outputOffsets.length < numOutputs)
+                outputOffsets = new int[Math.max(numOutputs, 2 * outputOffsets.length)];
+            for (int o = 0; o < numOutputs; o++) {
+                outputOffsets[o] = cursor;
+                int addressLength = readVarint(cursor + Long.BYTES);
+                cursor += addressLength;
+                checkBounds(addressLength);
+            }
+            if (cursor != end)
+                throw new IllegalArgumentException("frame length does not match its content");
+            return this;
+        }
+
+        /** @return the length of the whole frame, to step to the next one */
+        public int length() {
+            return end - start;
+        }
+
+        /** @return the buffer this view reads from */
+        public ByteBuffer buffer() {
+            return buf;
+        }
+
+        /** Copies the transaction hash into {@code dst} at {@code offset} */
+        public void getHash(byte[] dst, int offset) {
+            get(hashOffset, dst, offset, HASH_LENGTH);
+        }
+
+        public int numInputs() {
+            return numInputs;
+        }
+
+        /** @return the UTXO claimed by input {@code i}, built without copying its hash */
+        public UTXO getUTXO(int i) {
+            int pos = inputOffsets[i];
+            return new UTXO(getLong(pos), getLong(pos + 8), getLong(pos + 16), getLong(pos + 24),
+                    getInt(pos + HASH_LENGTH));
+        }
+
+        /** Copies the previous transaction hash of input {@code i} into {@code dst} at {@code offset} */
+        public void getPrevTxHash(int i, byte[] dst, int offset) {
+            get(inputOffsets[i], dst, offset, HASH_LENGTH);
+        }
+
+        public int getOutputIndex(int i) {
+            return getInt(inputOffsets[i] + HASH_LENGTH);
+        }
+
+        /** @return the absolute position in {@code buffer()} of the signature of input {@code i} */
+        public int getSignatureOffset(int i) {
+            readVarint(inputOffsets[i] + HASH_LENGTH + Integer.BYTES);
+            return cursor;
+        }
+
+        public int getSignatureLength(int i) {
+            return readVarint(inputOffsets[i] + HASH_LENGTH + Integer.BYTES);
+        }
+
+        public int numOutputs() {
+            return numOutputs;
+        }
+
+        public double getValue(int o) {
+            return Double.longBitsToDouble(getLong(outputOffsets[o]));
+        }
+
+        /** @return the absolute position in {@code buffer()} of the encoded address of output {@code o} */
+        public int getAddressOffset(int o) {
+            readVarint(outputOffsets[o] + Long.BYTES);
+            return cursor;
+        }
+
+        public int getAddressLength(int o) {
+            return readVarint(outputOffsets[o] + Long.BYTES);
+        }
+
+        /**
+         * @return the id in the shared {@code AddressRegistry} of the address of output {@code o},
+         *         which is decoded only if it has not been seen before
+         * @throws IllegalArgumentException if the address is not a valid X.509 encoded RSA key
+         */
+        public int getAddressId(int o) {
+            return AddressRegistry.getShared().intern(getAddressBytes(o));
+        }
+
+        /** @return a copy of the encoded address of output {@code o} */
+        private byte[] getAddressBytes(int o) {
+            byte[] address = new byte[getAddressLength(o)];
+            get(getAddressOffset(o), address, 0, address.length);
+            return address;
+        }
+
+        /**
+         * @return a new {@code Transaction} holding copies of the viewed fields, with its hash taken
+         *         from the frame
+         * @throws IllegalArgumentException if an address is not a valid X.509 encoded RSA key
+         */
+        public Transaction toTransaction() {
+            Transaction tx = new Transaction();
+            for (int i = 0; i < numInputs; i++) {
+                byte[] prevTxHash = new byte[HASH_LENGTH];
+                getPrevTxHash(i, prevTxHash, 0);
+                tx.addInput(prevTxHash, getOutputIndex(i));
+            }
+            AddressRegistry registry = AddressRegistry.getShared();
+            for (int o = 0; o < numOutputs; o++)
+                tx.addOutput(getValue(o), registry.decode(getAddressBytes(o)));
+            for (int i = 0; i < numInputs; i++) {
+                int length = getSignatureLength(i);
+                if (length > 0) {
+                    byte[] signature = new byte[length];
+                    get(getSignatureOffset(i), signature, 0, length);
+                    tx.addSignature(signature, i);
+                }
+            }
+            byte[] hash = new byte[HASH_LENGTH];
+            getHash(hash, 0);
+            tx.setHash(hash);
+            return tx;
+        }
+
+        /** Reads the varint at {@code pos} and leaves {@code cursor} just past it */
+        private int readVarint(int pos) {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (pos >= buf.limit())
+                    throw new IllegalArgumentException("frame runs past the buffer");
+                byte b = buf.get(pos++);
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    cursor = pos;
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("varint is longer than 5 bytes");
+        }
+
+        private void checkBounds(int length) {
+            if (length < 0 || cursor > end || cursor < 0)
+                throw new IllegalArgumentException("field runs past the frame");
+        }
+
+        private int getInt(int pos) {
+            int v = buf.getInt(pos);
+            return buf.order() == ByteOrder.BIG_ENDIAN ? v : Integer.reverseBytes(v);
+        }
+
+        private long getLong(int pos) {
+            long v = buf.getLong(pos);
+            return buf.order() == ByteOrder.BIG_ENDIAN ? v : Long.reverseBytes(v);
+        }
+
+        private void get(int pos, byte[] dst, int offset, int length) {
+            if (pos + length > end)
+                throw new BufferUnderflowException();
+            for (int i = 0; i < length; i++)
+                dst[offset + i] = buf.get(pos + i);
+        }
+    }
+
+    private static byte[][] encodeAddresses(Transaction tx) {
+        AddressRegistry registry = AddressRegistry.getShared();
+        byte[][] addresses = new byte[tx.numOutputs()][];
+        for (int o = 0; o < addresses.length; o++)
+            addresses[o] = registry.getEncoded(tx.getOutput(o).address);
+        return addresses;
+    }
+
+    private static int bodyLength(Transaction tx, byte[][] addresses) {
+        int length = HASH_LENGTH + varintLength(tx.numInputs()) + varintLength(tx.numOutputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            int signatureLength = in.signature == null ? 0 : in.signature.length;
+            length += HASH_LENGTH + Integer.BYTES + varintLength(signatureLength) + signatureLength;
+        }
+        for (byte[] address : addresses)
+            length += Long.BYTES + varintLength(address.length) + address.length;
+        return length;
+    }
+
+    private static void checkHash(byte[] hash, String what) {
+        if (hash == null || hash.length != HASH_LENGTH)
+            throw new IllegalArgumentException(what + " must be " + HASH_LENGTH + " bytes long");
+    }
+
+    static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0)
+            length++;
+        return length;
+    }
+
+    static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7f) != 0) {
+            dst.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static int bigEndian(ByteBuffer buf, int v) {
+        return buf.order() == ByteOrder.BIG_ENDIAN ? v : Integer.reverseBytes(v);
+    }
+
+    private static long bigEndian(ByteBuffer buf, long v) {
+        return buf.order() == ByteOrder.BIG_ENDIAN ? v : Long.reverseBytes(v);
+    }
+}
@@ -0,0 +1,134 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Parent/child structure of a batch of proposed transactions. Transactions are identified by their
+ * position in the batch, and every distinct transaction hash in the batch gets a group id, so that
+ * duplicates of the same transaction share one group. A transaction's parent groups are the
+ * distinct batch hashes named by its inputs' {@code prevTxHash}; its outputs can only be claimed
+ * once some member of each of those groups has been accepted.
+ */
+public class TxGraph {
+
+    private static final int[] NONE = new int[0];
+
+    private final Transaction[] txs;
+    /** group id of each position, or -1 for null or unfinalized transactions */
+    private final int[] group;
+    /** distinct parent group ids of each position */
+    private final int[][] parentGroups;
+    /** positions holding each group's hash */
+    private final int[][] members;
+    /** positions with an input that names each group's hash, each position at most once */
+    private final int[][] children;
+    private final HashMap<ByteBuffer, Integer> groupByHash;
+
+    /** Indexes {@code txs} by hash and links every input to the batch transaction it spends */
+    public TxGraph(Transaction[] txs) {
+        this.txs = txs;
+        group = new int[txs.length];
+        groupByHash = new HashMap<>();
+        ArrayList<ArrayList<Integer>> memberLists = new ArrayList<>();
+        for (int i = 0; i < txs.length; i++) {
+            group[i] = -1;
+            if (txs[i] == null || txs[i].getHash() == null)
+                continue;
+            ByteBuffer key = ByteBuffer.wrap(txs[i].getHash());
+            Integer g = groupByHash.get(key);
+            if (g == null) {
+                g = memberLists.size();
+                groupByHash.put(key, g);
+                memberLists.add(new ArrayList<Integer>());
+            }
+            group[i] = g;
+            memberLists.get(g).add(i);
+        }
+
+        int groups = memberLists.size();
+        members = new int[groups][];
+        for (int g = 0; g < groups; g++)
+            members[g] = toArray(memberLists.get(g));
+
+        parentGroups = new int[txs.length][];
+        ArrayList<ArrayList<Integer>> childLists = new ArrayList<>();
+        for (int g = 0; g < groups; g++)
+            childLists.add(new ArrayList<Integer>());
+        int[] lastChild = new int[groups];
+        Arrays.fill(lastChild, -1);
+        for (int i = 0; i < txs.length; i++) {
+            parentGroups[i] = NONE;
+            if (txs[i] == null)
+                continue;
+            ArrayList<Integer> parents = null;
+            for (Transaction.Input in : txs[i].getInputs()) {
+                int g = groupOf(in.prevTxHash);
+                if (g < 0 || lastChild[g] == i)
+                    continue;
+                lastChild[g] = i;
+                childLists.get(g).add(i);
+                if (parents == null)
+                    parents = new ArrayList<>();
+                parents.add(g);
+            }
+            if (parents != null)
+                parentGroups[i] = toArray(parents);
+        }
+        children = new int[groups][];
+        for (int g = 0; g < groups; g++)
+            children[g] = toArray(childLists.get(g));
+    }
+
+    /** @return the number of positions in the batch, including null entries */
+    public int size() {
+        return txs.length;
+    }
+
+    /** @return the transaction at position {@code i}, which may be null */
+    public Transaction get(int i) {
+        return txs[i];
+    }
+
+    /** @return the number of distinct transaction hashes in the batch */
+    public int numGroups() {
+        return members.length;
+    }
+
+    /** @return the group id of the transaction at position {@code i}, or -1 if it has no hash */
+    public int group(int i) {
+        return group[i];
+    }
+
+    /** @return the group id of {@code hash}, or -1 if no transaction in the batch has that hash */
+    public int groupOf(byte[] hash) {
+        if (hash == null)
+            return -1;
+        Integer g = groupByHash.get(ByteBuffer.wrap(hash));
+        return g == null ? -1 : g;
+    }
+
+    /** @return the distinct groups whose outputs are claimed by position {@code i}; do not modify */
+    public int[] parentGroups(int i) {
+        return parentGroups[i];
+    }
+
+    /** @return the positions of the transactions with the hash of group {@code g}; do not modify */
+    public int[] members(int g) {
+        return members[g];
+    }
+
+    /** @return the positions claiming an output of group {@code g}; do not modify */
+    public int[] children(int g) {
+        return children[g];
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        if (list.isEmpty())
+            return NONE;
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = list.get(i);
+        return a;
+    }
+}
@@ -1,9 +1,14 @@
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
 
 public class TxHandler {
 
     private UTXOPool utxoPool;
+    private TxValidator validator;
+    /** Changes made to {@code utxoPool} by the most recent {@code handleTxs} call */
+    private UTXOUndo lastUndo = new UTXOUndo();
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -11,7 +16,37 @@ public class TxHandler {
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, SignatureCache.getShared());
+    }
+
+    /**
+     * Creates a public ledger over a copy of {@code utxoPool} that looks up and records verified
+     * signatures in {@code signatureCache}, which may be shared with other handlers and epochs.
+     */
+    public TxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
+        this(utxoPool, signatureCache, null);
+    }
+
+    /**
+     * Creates a public ledger over a copy of {@code utxoPool} that spreads signature verification
+     * over {@code executor}, or verifies on the calling thread if it is null.
+     */
+    public TxHandler(UTXOPool utxoPool, SignatureCache signatureCache, ForkJoinPool executor) {
         this.utxoPool = new UTXOPool(utxoPool);
+        this.validator = new TxValidator(this.utxoPool, signatureCache, executor);
+    }
+
+    /** @return the current UTXO pool, including the changes of every {@code handleTxs} call */
+    public UTXOPool getUTXOPool() {
+        return utxoPool;
+    }
+
+    /**
+     * @return the undo record of the most recent {@code handleTxs} call; passing it to
+     *         {@code getUTXOPool().undo} rolls that epoch back
+     */
+    public UTXOUndo getLastUndo() {
+        return lastUndo;
     }
 
     /**
@@ -24,91 +59,121 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        HashSet<UTXO> claimedUTXOs = new HashSet<>();
-        double inputSum = 0;
-        double outputSum = 0;
-
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-
-            // (1) all outputs claimed by {@code tx} are in the current UTXO pool
-            if (!utxoPool.contains(utxo)) {
-                return false;
-            }
-
-            Transaction.Output prevOutput = utxoPool.getTxOutput(utxo);
-
-            // (2) the signatures on each input of {@code tx} are valid
-            if (!Crypto.verifySignature(prevOutput.address, tx.getRawDataToSign(i), input.signature)) {
-                return false;
-            }
-
-            // (3) no UTXO is claimed multiple times by {@code tx}
-            if (claimedUTXOs.contains(utxo)) {
-                return false;
-            }
-            claimedUTXOs.add(utxo);
-
-            inputSum += prevOutput.value;
-        }
-
-        for (Transaction.Output output : tx.getOutputs()) {
-            // (4) all of {@code tx}s output values are non-negative
-            if (output.value < 0) {
-                return false;
-            }
-            outputSum += output.value;
-        }
+        return validator.isValidTx(tx);
+    }
 
-        // (5) the sum of tx's input values is greater than or equal to the sum of its output values
-        if (inputSum < outputSum) {
-            return false;
-        }
+    /**
+     * @return the outcome of checking {@code tx} against the rules of {@code isValidTx}: VALID, or
+     *         the reason it is rejected
+     */
+    public ValidationResult validate(Transaction tx) {
+        return validator.validate(tx);
+    }
 
-        return true;
+    /** @return the counters and stage timings of every validation done by this handler */
+    public ValidationMetrics getValidationMetrics() {
+        return validator.getMetrics();
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * Transactions are validated in dependency order: a transaction is checked once, as soon as
+     * every transaction in the batch whose outputs it claims has been accepted, instead of the
+     * whole batch being rescanned until nothing changes. A claimed output already in the pool is
+     * not waited for, even when the transaction that created it is resubmitted in the batch. The scan order of that fixed-point loop
+     * is kept, so the same transactions win any double-spend conflicts: a round visits ready
+     * transactions by increasing position, a child that becomes ready behind the current position
+     * joins the current round, and one that becomes ready ahead of it waits for the next round.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+        HashSet<Transaction> accepted = new HashSet<>();
+        lastUndo = new UTXOUndo();
+
+        // In parallel mode, check every resolvable signature of the epoch up front
+        validator.preverifySignatures(possibleTxs);
+
+        TxGraph graph = new TxGraph(possibleTxs);
+        int[][] waitingOn = new int[graph.size()][];
+        int[] unresolvedParents = new int[graph.size()];
+        boolean[] groupAccepted = new boolean[graph.numGroups()];
+        PriorityQueue<Integer> round = new PriorityQueue<>();
+        ArrayList<Integer> nextRound = new ArrayList<>();
+        for (int i = 0; i < graph.size(); i++) {
+            waitingOn[i] = missingParents(graph, i);
+            unresolvedParents[i] = waitingOn[i].length;
+            if (graph.get(i) != null && unresolvedParents[i] == 0)
+                round.add(i);
+        }
 
-        while (true) {
-            int acceptedCountThisRound = 0;
-            for (Transaction tx : possibleTxs) {
-                if (tx == null || acceptedTxs.contains(tx)) {
+        while (!round.isEmpty()) {
+            while (!round.isEmpty()) {
+                int i = round.poll();
+                Transaction tx = graph.get(i);
+                if (accepted.contains(tx) || !isValidTx(tx)) {
                     continue;
                 }
+                acceptedTxs.add(tx);
+                accepted.add(tx);
 
-                if (isValidTx(tx)) {
-                    acceptedTxs.add(tx);
-                    acceptedCountThisRound++;
+                // Spend the claimed UTXOs and add the new ones, recording both for rollback
+                utxoPool.applyTx(tx, lastUndo);
 
-                    // Remove spent UTXOs from the pool
-                    for (Transaction.Input input : tx.getInputs()) {
-                        UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
-                        utxoPool.removeUTXO(utxo);
-                    }
-                    
-                    // Add new UTXOs to the pool
-                    for (int i = 0; i < tx.numOutputs(); i++) {
-                        Transaction.Output output = tx.getOutput(i);
-                        UTXO utxo = new UTXO(tx.getHash(), i);
-                        utxoPool.addUTXO(utxo, output);
+                // Release the children whose last missing parent this was
+                int g = graph.group(i);
+                if (g < 0 || groupAccepted[g]) {
+                    continue;
+                }
+                groupAccepted[g] = true;
+                for (int child : graph.children(g)) {
+                    if (!contains(waitingOn[child], g))
+                        continue;
+                    if (--unresolvedParents[child] == 0) {
+                        if (child > i)
+                            round.add(child);
+                        else
+                            nextRound.add(child);
                     }
                 }
             }
-            
-            // If we go through a whole loop without accepting any new transactions, we're done.
-            if (acceptedCountThisRound == 0) {
-                break;
-            }
+            round.addAll(nextRound);
+            nextRound.clear();
         }
 
         return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the parent groups of position {@code i} that it has to wait for: those it claims an
+     *         output of that is not already in the pool, as when a parent is resubmitted alongside
+     *         its child
+     */
+    private int[] missingParents(TxGraph graph, int i) {
+        int[] parents = graph.parentGroups(i);
+        if (parents.length == 0)
+            return parents;
+        ArrayList<Integer> missing = new ArrayList<>();
+        for (Transaction.Input in : graph.get(i).getInputs()) {
+            int g = graph.groupOf(in.prevTxHash);
+            if (g < 0 || missing.contains(g))
+                continue;
+            if (!utxoPool.contains(new UTXO(in.prevTxHash, in.outputIndex)))
+                missing.add(g);
+        }
+        int[] result = new int[missing.size()];
+        for (int k = 0; k < result.length; k++)
+            result[k] = missing.get(k);
+        return result;
+    }
+
+    private static boolean contains(int[] groups, int g) {
+        for (int x : groups) {
+            if (x == g)
+                return true;
+        }
+        return false;
+    }
+}
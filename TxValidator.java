@@ -0,0 +1,216 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Checks transactions against a UTXO pool on behalf of {@code TxHandler} and
+ * {@code MaxFeeTxHandler}. The pool is read live, so updates made by the owning handler are seen by
+ * later checks.
+ *
+ * Without an executor every check runs on the calling thread. With one, the RSA signature checks,
+ * which are CPU-bound and independent per input, are spread over its workers. The UTXO-existence,
+ * double-claim and value checks always run first on the calling thread, in input order, so the
+ * answer does not depend on the number of workers, and no signature is verified for a transaction
+ * they already reject.
+ */
+public class TxValidator {
+
+    private final UTXOPool utxoPool;
+    private final SignatureCache signatureCache;
+    private final ForkJoinPool executor;
+    private final ValidationMetrics metrics = new ValidationMetrics();
+    private final Function<UTXO, Transaction.Output> poolOutputs;
+
+    /**
+     * Creates a validator reading {@code utxoPool} and {@code signatureCache}. Signature checks run
+     * on {@code executor}, or on the calling thread if it is null.
+     */
+    public TxValidator(UTXOPool utxoPool, SignatureCache signatureCache, ForkJoinPool executor) {
+        this.utxoPool = utxoPool;
+        this.signatureCache = signatureCache;
+        this.executor = executor;
+        this.poolOutputs = utxoPool::getTxOutput;
+    }
+
+    /** @return true if {@code validate(tx)} is {@code VALID} */
+    public boolean isValidTx(Transaction tx) {
+        return validate(tx).isValid();
+    }
+
+    /**
+     * Checks {@code tx} against the five rules documented on {@code TxHandler.isValidTx} and records
+     * the outcome and the time of each stage in the metrics. The cheap checks run before any
+     * signature is verified: first the pool lookups and duplicate claims, then the values, which
+     * are summed exactly in {@code Amounts} units.
+     *
+     * @return {@code VALID}, or the first rule found broken
+     */
+    public ValidationResult validate(Transaction tx) {
+        return validate(tx, poolOutputs);
+    }
+
+    /**
+     * Checks {@code tx} like {@code validate(tx)}, but looks up the outputs it claims with
+     * {@code outputs}, which returns null for an output that does not exist, instead of in the pool.
+     * Selectors use it to check a transaction against the pool as it would be once its parents in
+     * the epoch are accepted.
+     */
+    public ValidationResult validate(Transaction tx, Function<UTXO, Transaction.Output> outputs) {
+        long start = System.nanoTime();
+        Transaction.Output[] prevOutputs = new Transaction.Output[tx.numInputs()];
+        ValidationResult result = checkInputs(tx, outputs, prevOutputs);
+        long inputsDone = System.nanoTime();
+        metrics.record(ValidationMetrics.Stage.INPUTS, inputsDone - start);
+        if (result == ValidationResult.VALID) {
+            result = checkValues(tx, prevOutputs);
+            long valuesDone = System.nanoTime();
+            metrics.record(ValidationMetrics.Stage.VALUES, valuesDone - inputsDone);
+            if (result == ValidationResult.VALID) {
+                // (2) the signatures on each input of tx are valid
+                if (!verifySignatures(tx, prevOutputs))
+                    result = ValidationResult.BAD_SIGNATURE;
+                metrics.record(ValidationMetrics.Stage.SIGNATURES, System.nanoTime() - valuesDone);
+            }
+        }
+        metrics.record(result);
+        return result;
+    }
+
+    /** @return the metrics of every validation done by this validator */
+    public ValidationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Resolves the outputs claimed by {@code tx} into {@code prevOutputs}, checking rules 1 and 3 */
+    private static ValidationResult checkInputs(Transaction tx, Function<UTXO, Transaction.Output> outputs,
+            Transaction.Output[] prevOutputs) {
+        HashSet<UTXO> claimedUTXOs = new HashSet<>();
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+
+            // (1) all outputs claimed by tx are in the current UTXO pool
+            Transaction.Output prevOutput = outputs.apply(utxo);
+            if (prevOutput == null) {
+                return ValidationResult.MISSING_INPUT;
+            }
+
+            // (3) no UTXO is claimed multiple times by tx
+            if (!claimedUTXOs.add(utxo)) {
+                return ValidationResult.DUPLICATE_CLAIM;
+            }
+
+            prevOutputs[i] = prevOutput;
+        }
+        return ValidationResult.VALID;
+    }
+
+    /**
+     * Checks rules 4 and 5 on the values of {@code tx} and of the outputs it claims. The sums are
+     * exact in units: an output value that is not a whole number of units is a bad value, and a
+     * claimed value is rounded down, so rounding can never let tx pay out more than it claims.
+     */
+    private static ValidationResult checkValues(Transaction tx, Transaction.Output[] prevOutputs) {
+        long inputSum = 0;
+        long outputSum = 0;
+        try {
+            for (Transaction.Output prevOutput : prevOutputs)
+                inputSum = Amounts.add(inputSum, Amounts.toUnitsFloor(prevOutput.value));
+            for (Transaction.Output output : tx.getOutputs()) {
+                // (4) all of tx's output values are non-negative
+                if (output.value < 0) {
+                    return ValidationResult.NEGATIVE_OUTPUT;
+                }
+                outputSum = Amounts.add(outputSum, Amounts.toUnitsExact(output.value));
+            }
+        } catch (ArithmeticException e) {
+            return ValidationResult.BAD_VALUE;
+        }
+
+        // (5) the sum of tx's input values is greater than or equal to the sum of its output values
+        return inputSum >= outputSum ? ValidationResult.VALID : ValidationResult.INSUFFICIENT_INPUT;
+    }
+
+    /**
+     * Verifies, in parallel on the executor, the input signatures of {@code txs} whose claimed
+     * output can be resolved either in the pool or among the outputs of {@code txs} themselves, and
+     * records the outcomes, valid or not, in the signature cache. Later {@code isValidTx} calls on
+     * the same transactions then find their signatures cached and only do the sequential UTXO
+     * checks. Does nothing without an executor.
+     *
+     * Entries only help if they are still cached when the sequential checks reach them, so at most
+     * half the capacity of the cache is verified, taking inputs in batch order; the segments of
+     * the cache fill unevenly and it may be shared, and the rest of the capacity absorbs both. The
+     * inputs beyond that are verified when their transaction is checked.
+     */
+    public void preverifySignatures(Transaction[] txs) {
+        if (executor == null)
+            return;
+        HashMap<ByteBuffer, Transaction> byHash = new HashMap<>();
+        for (Transaction tx : txs) {
+            if (tx != null && tx.getHash() != null)
+                byHash.put(ByteBuffer.wrap(tx.getHash()), tx);
+        }
+
+        final ArrayList<Transaction> checkTxs = new ArrayList<>();
+        final ArrayList<Integer> checkInputs = new ArrayList<>();
+        final ArrayList<PublicKey> checkKeys = new ArrayList<>();
+        int limit = signatureCache.getCapacity() / 2;
+        for (Transaction tx : txs) {
+            if (checkTxs.size() >= limit)
+                break;
+            if (tx == null)
+                continue;
+            for (int i = 0; i < tx.numInputs() && checkTxs.size() < limit; i++) {
+                PublicKey address = resolveAddress(tx.getInput(i), byHash);
+                if (address != null) {
+                    checkTxs.add(tx);
+                    checkInputs.add(i);
+                    checkKeys.add(address);
+                }
+            }
+        }
+
+        executor.submit(() -> IntStream.range(0, checkTxs.size()).parallel().forEach(n -> {
+            Transaction tx = checkTxs.get(n);
+            int i = checkInputs.get(n);
+            signatureCache.verifySignature(checkKeys.get(n), tx.getRawDataToSign(i),
+                    tx.getInput(i).signature);
+        })).join();
+    }
+
+    private boolean verifySignatures(final Transaction tx, final Transaction.Output[] prevOutputs) {
+        if (executor == null || prevOutputs.length < 2) {
+            for (int i = 0; i < prevOutputs.length; i++) {
+                if (!verifySignature(tx, i, prevOutputs[i]))
+                    return false;
+            }
+            return true;
+        }
+        return executor.submit(() -> IntStream.range(0, prevOutputs.length).parallel()
+                .allMatch(i -> verifySignature(tx, i, prevOutputs[i]))).join();
+    }
+
+    private boolean verifySignature(Transaction tx, int index, Transaction.Output prevOutput) {
+        return signatureCache.verifySignature(prevOutput.address, tx.getRawDataToSign(index),
+                tx.getInput(index).signature);
+    }
+
+    /** @return the address of the output claimed by {@code input}, or null if it is unknown */
+    private PublicKey resolveAddress(Transaction.Input input, HashMap<ByteBuffer, Transaction> byHash) {
+        if (input.prevTxHash == null)
+            return null;
+        Transaction.Output prevOutput = utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex));
+        if (prevOutput == null) {
+            Transaction parent = byHash.get(ByteBuffer.wrap(input.prevTxHash));
+            if (parent != null && input.outputIndex >= 0)
+                prevOutput = parent.getOutput(input.outputIndex);
+        }
+        return prevOutput == null ? null : prevOutput.address;
+    }
+}
@@ -2,24 +2,99 @@ import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    /** Length of a SHA-256 transaction hash, the only length stored in packed form */
+    private static final int PACKED_HASH_LENGTH = 32;
+
+    /** Flips the sign bit of every byte so that unsigned long order matches signed byte order */
+    private static final long SIGN_BITS = 0x8080808080808080L;
+
+    /**
+     * Hash of the transaction from which this UTXO originates, packed big-endian into four longs
+     * when it is {@value #PACKED_HASH_LENGTH} bytes long
+     */
+    private final long h0, h1, h2, h3;
+
+    /** Hash of the transaction from which this UTXO originates if it has any other length, else null */
+    private final byte[] txHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    /** Hash code, computed once since every pool lookup needs it */
+    private final int hashCode;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
         this.index = index;
+        if (txHash.length == PACKED_HASH_LENGTH) {
+            this.h0 = getLong(txHash, 0);
+            this.h1 = getLong(txHash, 8);
+            this.h2 = getLong(txHash, 16);
+            this.h3 = getLong(txHash, 24);
+            this.txHash = null;
+        } else {
+            this.h0 = this.h1 = this.h2 = this.h3 = 0;
+            this.txHash = Arrays.copyOf(txHash, txHash.length);
+        }
+        int hash = 1;
+        hash = hash * 17 + index;
+        hash = hash * 31 + Arrays.hashCode(txHash);
+        this.hashCode = hash;
+    }
+
+    /**
+     * Creates the UTXO for output {@code index} of the transaction whose 32-byte hash is packed
+     * big-endian into {@code h0} to {@code h3}, as returned by {@code getHashWord}
+     */
+    UTXO(long h0, long h1, long h2, long h3, int index) {
+        this.h0 = h0;
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+        this.txHash = null;
+        this.index = index;
+        // same value as Arrays.hashCode over the unpacked bytes
+        int bytesHash = hashWord(hashWord(hashWord(hashWord(1, h0), h1), h2), h3);
+        int hash = 1;
+        hash = hash * 17 + index;
+        hash = hash * 31 + bytesHash;
+        this.hashCode = hash;
+    }
+
+    /** @return true if the transaction hash is 32 bytes long and available from {@code getHashWord} */
+    boolean hasPackedHash() {
+        return txHash == null;
+    }
+
+    /** @return bytes {@code 8 * i} to {@code 8 * i + 7} of a packed transaction hash, big-endian */
+    long getHashWord(int i) {
+        switch (i) {
+        case 0:
+            return h0;
+        case 1:
+            return h1;
+        case 2:
+            return h2;
+        case 3:
+            return h3;
+        default:
+            throw new IndexOutOfBoundsException("hash word " + i);
+        }
     }
 
     /** @return the transaction hash of this UTXO */
     public byte[] getTxHash() {
-        return txHash;
+        if (txHash != null)
+            return txHash;
+        byte[] hash = new byte[PACKED_HASH_LENGTH];
+        putLong(hash, 0, h0);
+        putLong(hash, 8, h1);
+        putLong(hash, 16, h2);
+        putLong(hash, 24, h3);
+        return hash;
     }
 
     /** @return the index of this UTXO */
@@ -40,15 +115,12 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
+        if (hashCode != utxo.hashCode || index != utxo.index)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        if (txHash == null)
+            return utxo.txHash == null && h0 == utxo.h0 && h1 == utxo.h1 && h2 == utxo.h2
+                    && h3 == utxo.h3;
+        return Arrays.equals(txHash, utxo.txHash);
     }
 
     /**
@@ -56,28 +128,34 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
-        return hash;
+        return hashCode;
     }
 
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
         int in = utxo.index;
         if (in > index)
             return -1;
         else if (in < index)
             return 1;
         else {
-            int len1 = txHash.length;
-            int len2 = hash.length;
+            int len1 = hashLength();
+            int len2 = utxo.hashLength();
             if (len2 > len1)
                 return -1;
             else if (len2 < len1)
                 return 1;
-            else {
+            else if (txHash == null) {
+                int c = compareWords(h0, utxo.h0);
+                if (c == 0)
+                    c = compareWords(h1, utxo.h1);
+                if (c == 0)
+                    c = compareWords(h2, utxo.h2);
+                if (c == 0)
+                    c = compareWords(h3, utxo.h3);
+                return c;
+            } else {
+                byte[] hash = utxo.txHash;
                 for (int i = 0; i < len1; i++) {
                     if (hash[i] > txHash[i])
                         return -1;
@@ -88,4 +166,35 @@ public class UTXO implements Comparable<UTXO> {
             }
         }
     }
+
+    private int hashLength() {
+        return txHash == null ? PACKED_HASH_LENGTH : txHash.length;
+    }
+
+    /** Compares eight packed hash bytes as signed bytes, first byte most significant */
+    private static int compareWords(long a, long b) {
+        int c = Long.compareUnsigned(a ^ SIGN_BITS, b ^ SIGN_BITS);
+        return c < 0 ? -1 : c > 0 ? 1 : 0;
+    }
+
+    /** Continues an {@code Arrays.hashCode} computation over the eight bytes of {@code word} */
+    private static int hashWord(int hash, long word) {
+        for (int shift = 56; shift >= 0; shift -= 8)
+            hash = 31 * hash + (byte) (word >>> shift);
+        return hash;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = v << 8 | (b[off + i] & 0xff);
+        return v;
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
 }
@@ -1,22 +1,59 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
 
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new HashMapUTXOStore();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}, kept in the same kind of store. The
+     * copy costs whatever the store's {@code copy} costs: O(n) for the default {@code HashMap}
+     * store and O(1) for a {@code PersistentUTXOStore}.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+    }
+
+    /** Creates a new UTXOPool holding its UTXOs in {@code store} */
+    public UTXOPool(UTXOStore store) {
+        H = store;
+    }
+
+    /** Creates a new empty UTXOPool whose copies and snapshots are O(1) */
+    public static UTXOPool persistent() {
+        return new UTXOPool(new PersistentUTXOStore());
+    }
+
+    /**
+     * Creates a new empty UTXOPool whose entries live outside the Java heap, sized for
+     * {@code expectedSize} UTXOs. It only accepts UTXOs with 32-byte transaction hashes.
+     */
+    public static UTXOPool offHeap(int expectedSize) {
+        return new UTXOPool(new OffHeapUTXOStore(expectedSize));
+    }
+
+    /**
+     * Creates a new empty UTXOPool that can be read and updated from several threads at once, with
+     * its UTXOs spread over {@code stripes} independently locked stripes
+     */
+    public static UTXOPool concurrent(int stripes) {
+        return new UTXOPool(new StripedUTXOStore(stripes));
+    }
+
+    /**
+     * @return an independent copy of this pool, the same as {@code new UTXOPool(this)}. For a
+     *         persistent pool it shares all structure with this one, so snapshots are cheap enough
+     *         to hand one to every handler building a candidate block.
+     */
+    public UTXOPool snapshot() {
+        return new UTXOPool(this);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
@@ -29,6 +66,71 @@ public class UTXOPool {
         H.remove(utxo);
     }
 
+    /**
+     * Applies {@code tx} to the pool: removes the UTXOs claimed by its inputs and adds one UTXO per
+     * output. If {@code undo} is not null, the change is appended to it so that it can later be
+     * reverted with {@code undo}.
+     */
+    public void applyTx(Transaction tx, UTXOUndo undo) {
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (undo != null) {
+                Transaction.Output spent = H.get(utxo);
+                if (spent != null)
+                    undo.recordSpent(utxo, spent);
+            }
+            H.remove(utxo);
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(tx.getHash(), i);
+            if (undo != null) {
+                Transaction.Output overwritten = H.get(utxo);
+                if (overwritten != null)
+                    undo.recordSpent(utxo, overwritten);
+            }
+            H.put(utxo, tx.getOutput(i));
+        }
+        if (undo != null)
+            undo.recordCreated(tx.getHash(), tx.numOutputs());
+    }
+
+    /**
+     * Applies every transaction of {@code txs}, in order, as one change set.
+     *
+     * @return the record that reverts the whole set when passed to {@code undo}
+     */
+    public UTXOUndo apply(Transaction[] txs) {
+        UTXOUndo undo = new UTXOUndo();
+        for (Transaction tx : txs)
+            applyTx(tx, undo);
+        return undo;
+    }
+
+    /**
+     * Reverts the changes recorded in {@code undo}, newest first, leaving the record empty. Changes
+     * made to the pool after them must have been reverted already.
+     */
+    public void undo(UTXOUndo undo) {
+        undo.revert(this);
+    }
+
+    /**
+     * Spends every UTXO claimed by the inputs of {@code tx} if all of them are in the pool and none
+     * is claimed twice, and leaves the pool unchanged otherwise. In a pool created by
+     * {@code concurrent} the check and the removal happen atomically, so of two transactions racing
+     * to spend the same output only one succeeds.
+     *
+     * @return the spent outputs in input order, or null if nothing was spent
+     */
+    public Transaction.Output[] claimInputs(Transaction tx) {
+        UTXO[] utxos = new UTXO[tx.numInputs()];
+        for (int i = 0; i < utxos.length; i++) {
+            Transaction.Input in = tx.getInput(i);
+            utxos[i] = new UTXO(in.prevTxHash, in.outputIndex);
+        }
+        return H.removeAll(utxos);
+    }
+
     /**
      * @return the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is
      *         not in the pool.
@@ -42,13 +144,13 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
-        return allUTXO;
+        return H.keys();
     }
 }
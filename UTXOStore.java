@@ -0,0 +1,51 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Storage behind a {@code UTXOPool}: a map from each unspent output's {@code UTXO} to the
+ * {@code Transaction.Output} it refers to. Implementations differ in how entries are held and in
+ * what {@code copy} costs; the pool's semantics are the same over all of them.
+ */
+public interface UTXOStore {
+
+    /** Maps {@code utxo} to {@code txOut}, replacing any previous mapping */
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes the mapping for {@code utxo}, if any */
+    void remove(UTXO utxo);
+
+    /** @return the output mapped to {@code utxo}, or null if there is none */
+    Transaction.Output get(UTXO utxo);
+
+    /** @return true if {@code utxo} is mapped */
+    boolean containsKey(UTXO utxo);
+
+    /** @return the number of mappings */
+    int size();
+
+    /** @return every mapped UTXO, in no particular order */
+    ArrayList<UTXO> keys();
+
+    /**
+     * Removes every UTXO in {@code utxos} if all of them are mapped and none appears twice, and
+     * removes nothing otherwise. Thread-safe stores do this atomically, so two callers racing to
+     * claim the same UTXO cannot both succeed; this default implementation is not atomic.
+     *
+     * @return the removed outputs in the order of {@code utxos}, or null if nothing was removed
+     */
+    default Transaction.Output[] removeAll(UTXO[] utxos) {
+        Transaction.Output[] removed = new Transaction.Output[utxos.length];
+        HashSet<UTXO> seen = new HashSet<UTXO>();
+        for (int i = 0; i < utxos.length; i++) {
+            removed[i] = get(utxos[i]);
+            if (removed[i] == null || !seen.add(utxos[i]))
+                return null;
+        }
+        for (UTXO utxo : utxos)
+            remove(utxo);
+        return removed;
+    }
+
+    /** @return a store with the same mappings whose later updates are independent of this one */
+    UTXOStore copy();
+}
@@ -0,0 +1,61 @@
+import java.util.ArrayList;
+
+/**
+ * Undo record of a set of transactions applied to a {@code UTXOPool} through
+ * {@code UTXOPool.applyTx}. For each transaction it keeps the entries that were spent or
+ * overwritten, with their outputs, and the created UTXOs as just the transaction hash and output
+ * count. {@code UTXOPool.undo} uses it to put the pool back as it was, without the pool ever
+ * having been copied.
+ */
+public class UTXOUndo {
+
+    private final ArrayList<UTXO> spentUTXOs = new ArrayList<UTXO>();
+    private final ArrayList<Transaction.Output> spentOutputs = new ArrayList<Transaction.Output>();
+
+    /** Per transaction: where its spent entries end, its hash and how many outputs it created */
+    private final ArrayList<Integer> spentEnds = new ArrayList<Integer>();
+    private final ArrayList<byte[]> createdHashes = new ArrayList<byte[]>();
+    private final ArrayList<Integer> createdCounts = new ArrayList<Integer>();
+
+    /** Creates an empty record */
+    public UTXOUndo() {
+    }
+
+    /** @return the number of transactions recorded */
+    public int numTxs() {
+        return createdHashes.size();
+    }
+
+    /** @return the number of pool entries the recorded transactions removed or overwrote */
+    public int numSpent() {
+        return spentUTXOs.size();
+    }
+
+    void recordSpent(UTXO utxo, Transaction.Output txOut) {
+        spentUTXOs.add(utxo);
+        spentOutputs.add(txOut);
+    }
+
+    void recordCreated(byte[] txHash, int count) {
+        spentEnds.add(spentUTXOs.size());
+        createdHashes.add(txHash);
+        createdCounts.add(count);
+    }
+
+    /** Reverts the recorded transactions on {@code pool}, newest first, and empties this record */
+    void revert(UTXOPool pool) {
+        for (int t = createdHashes.size() - 1; t >= 0; t--) {
+            byte[] txHash = createdHashes.get(t);
+            for (int i = 0; i < createdCounts.get(t); i++)
+                pool.removeUTXO(new UTXO(txHash, i));
+            int start = t == 0 ? 0 : spentEnds.get(t - 1);
+            for (int s = spentEnds.get(t) - 1; s >= start; s--)
+                pool.addUTXO(spentUTXOs.get(s), spentOutputs.get(s));
+        }
+        spentUTXOs.clear();
+        spentOutputs.clear();
+        spentEnds.clear();
+        createdHashes.clear();
+        createdCounts.clear();
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings of transaction validation. Every validation is counted under its
+ * {@code ValidationResult}, and the time spent in each stage of the checks is recorded in a
+ * histogram per {@code Stage}, so it is visible whether rejections come from the cheap input and
+ * value checks or from RSA verification, and what each costs. All methods are thread-safe.
+ */
+public class ValidationMetrics {
+
+    /** Stages of a validation, in the order they run */
+    public enum Stage {
+        /** Pool lookups and duplicate-claim checks of the inputs */
+        INPUTS,
+        /** Range, sign and sum checks of the values */
+        VALUES,
+        /** Signature verification, including signature cache lookups */
+        SIGNATURES
+    }
+
+    private final LongAdder[] counts = new LongAdder[ValidationResult.values().length];
+    private final Histogram[] times = new Histogram[Stage.values().length];
+
+    /** Creates metrics with every count and histogram empty */
+    public ValidationMetrics() {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = new LongAdder();
+        for (int i = 0; i < times.length; i++)
+            times[i] = new Histogram();
+    }
+
+    /** Counts one validation that ended with {@code result} */
+    public void record(ValidationResult result) {
+        counts[result.ordinal()].increment();
+    }
+
+    /** Records {@code nanos} spent in {@code stage} */
+    public void record(Stage stage, long nanos) {
+        times[stage.ordinal()].record(nanos);
+    }
+
+    /** @return the number of validations that ended with {@code result} */
+    public long getCount(ValidationResult result) {
+        return counts[result.ordinal()].sum();
+    }
+
+    /** @return the histogram of the time spent in {@code stage} */
+    public Histogram getTimes(Stage stage) {
+        return times[stage.ordinal()];
+    }
+
+    /** Empties every count and histogram */
+    public void reset() {
+        for (LongAdder count : counts)
+            count.reset();
+        for (Histogram histogram : times)
+            histogram.reset();
+    }
+
+    /** @return one line per result with a non-zero count and one per stage that ran */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (ValidationResult result : ValidationResult.values()) {
+            long count = getCount(result);
+            if (count > 0)
+                sb.append(String.format("%-18s %12d%n", result, count));
+        }
+        for (Stage stage : Stage.values()) {
+            Histogram h = getTimes(stage);
+            if (h.getCount() > 0)
+                sb.append(String.format("%-18s %12d runs, mean %.0f ns, p50 <= %d ns, p99 <= %d ns%n", stage,
+                        h.getCount(), h.getMean(), h.getPercentile(0.50), h.getPercentile(0.99)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Histogram of durations in nanoseconds with power-of-two buckets: bucket {@code b} counts
+     * durations below {@code 2^b} and not below {@code 2^(b-1)}. Percentiles are reported as the
+     * upper bound of the bucket they fall in, so they are exact to within a factor of two.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        /** Records one duration of {@code nanos} */
+        public void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+        }
+
+        /** @return the number of durations recorded */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /** @return the sum of the durations recorded */
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /** @return the mean duration, or 0 if none was recorded */
+        public double getMean() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) getTotalNanos() / n;
+        }
+
+        /**
+         * @return an upper bound of the {@code p}-th quantile of the durations recorded, for
+         *         {@code p} in [0, 1], or 0 if none was recorded
+         */
+        public long getPercentile(double p) {
+            long total = 0;
+            for (int b = 0; b < 64; b++)
+                total += buckets.get(b);
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank && seen > 0)
+                    return b == 63 ? Long.MAX_VALUE : (1L << b) - 1;
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int b = 0; b < 64; b++)
+                buckets.set(b, 0);
+            count.reset();
+            totalNanos.reset();
+        }
+    }
+}
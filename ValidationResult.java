@@ -0,0 +1,36 @@
+/**
+ * Outcome of validating a transaction against a UTXO pool: {@code VALID}, or the rule that
+ * rejected it. The input checks run first, then the value checks, and signatures are verified
+ * last, so a transaction breaking several rules reports the first one checked.
+ */
+public enum ValidationResult {
+
+    /** A claimed output is not in the pool (rule 1) */
+    MISSING_INPUT,
+
+    /** The same output is claimed by more than one input (rule 3) */
+    DUPLICATE_CLAIM,
+
+    /**
+     * A value is not a finite amount that {@code Amounts} can represent, an output value is not a
+     * whole number of units, or a sum overflows
+     */
+    BAD_VALUE,
+
+    /** An output value is negative (rule 4) */
+    NEGATIVE_OUTPUT,
+
+    /** The outputs are worth more than the claimed outputs (rule 5) */
+    INSUFFICIENT_INPUT,
+
+    /** An input signature does not verify against the claimed output's address (rule 2) */
+    BAD_SIGNATURE,
+
+    /** Every rule holds */
+    VALID;
+
+    /** @return true if this is {@code VALID} */
+    public boolean isValid() {
+        return this == VALID;
+    }
+}
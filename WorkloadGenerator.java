@@ -0,0 +1,385 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Builds synthetic epochs for benchmarking and load testing the handlers: a starting
+ * {@code UTXOPool} and a batch of signed transactions proposed against it.
+ *
+ * Everything is derived from a seed. A fixed set of RSA key pairs is generated once per generator
+ * and reused for every epoch, so key generation is not paid per run; {@code EpochFile} saves the
+ * keys along with generated epochs. An epoch of {@code numTxs} valid transactions is laid out in
+ * {@code chainDepth} layers: the first layer spends outputs of funding transactions placed in the
+ * pool, and every later layer spends outputs created by the layer before it, so dependency chains
+ * inside the epoch are {@code chainDepth} long. Each transaction has {@code fanIn} inputs and
+ * {@code fanOut} outputs, and pays a positive fee of up to 5% of its input value.
+ *
+ * On top of the valid transactions, each of them may come with invalid or conflicting variants
+ * spending the same outputs, at the configured rates: a double spend with other outputs and fee, a
+ * copy with a corrupted signature, and a copy with a negative output that keeps the output sum.
+ *
+ * Generation streams into a {@code Sink}: first every pool entry, then the transactions, which
+ * are shuffled within a window of {@value #SHUFFLE_WINDOW}. Chains are built in blocks of at most
+ * {@value #BLOCK_WIDTH} per layer and funding outputs are recomputed from the seed rather than
+ * kept, so memory use does not grow with the epoch size.
+ */
+public class WorkloadGenerator {
+
+    /** Number of outputs of each funding transaction */
+    private static final int OUTPUTS_PER_ROOT = 16;
+
+    /** Maximum number of transactions in a layer of one block of chains */
+    public static final int BLOCK_WIDTH = 4096;
+
+    /** Number of transactions held back to shuffle the emitted order */
+    public static final int SHUFFLE_WINDOW = 4096;
+
+    private enum Fault {
+        NONE, BAD_SIGNATURE, NEGATIVE_OUTPUT
+    }
+
+    private final long seed;
+    private final KeyPair[] keys;
+    /** key index by public key, which is equal to any instance with the same encoding */
+    private final HashMap<PublicKey, Integer> keyIds = new HashMap<PublicKey, Integer>();
+
+    private double doubleSpendRate;
+    private double badSignatureRate;
+    private double negativeOutputRate;
+
+    /** An epoch: the pool it starts from and the transactions proposed in it */
+    public static class Epoch {
+        public final UTXOPool pool;
+        public final Transaction[] txs;
+
+        public Epoch(UTXOPool pool, Transaction[] txs) {
+            this.pool = pool;
+            this.txs = txs;
+        }
+    }
+
+    /** Receives a generated epoch */
+    public interface Sink {
+        /** Receives an entry of the starting pool; all of them come before the first transaction */
+        void utxo(UTXO utxo, Transaction.Output txOut) throws IOException;
+
+        /** Receives the next transaction of the epoch */
+        void transaction(Transaction tx) throws IOException;
+    }
+
+    /** An unspent output available to later transactions while an epoch is generated */
+    static final class Coin {
+        final byte[] txHash;
+        final int index;
+        final double value;
+        final int key;
+
+        Coin(byte[] txHash, int index, double value, int key) {
+            this.txHash = txHash;
+            this.index = index;
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Creates a generator with {@code numKeys} RSA key pairs of {@code keyBits} bits, derived
+     * deterministically from {@code seed}
+     */
+    public WorkloadGenerator(long seed, int numKeys, int keyBits) throws GeneralSecurityException {
+        this.seed = seed;
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(seed);
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(keyBits, random);
+        keys = new KeyPair[numKeys];
+        for (int i = 0; i < numKeys; i++) {
+            keys[i] = gen.generateKeyPair();
+            keyIds.putIfAbsent(keys[i].getPublic(), i);
+        }
+    }
+
+    /** Creates a generator over already generated {@code keys} */
+    public WorkloadGenerator(long seed, KeyPair[] keys) {
+        this.seed = seed;
+        this.keys = keys.clone();
+        for (int i = 0; i < keys.length; i++)
+            keyIds.putIfAbsent(keys[i].getPublic(), i);
+    }
+
+    /** @return the seed everything is derived from */
+    public long getSeed() {
+        return seed;
+    }
+
+    /** @return the number of key pairs outputs are paid to */
+    public int numKeys() {
+        return keys.length;
+    }
+
+    /** @return key pair {@code i} */
+    public KeyPair key(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @return the index of the key pair {@code address} belongs to, or -1 if it is not one of them.
+     *         Keys are matched by encoding, so a key decoded from bytes, as by {@code EpochFile},
+     *         still resolves to the generator key it encodes.
+     */
+    public int keyIndex(Object address) {
+        if (!(address instanceof PublicKey))
+            return -1;
+        Integer id = keyIds.get(address);
+        return id == null ? -1 : id;
+    }
+
+    /** Sets the probability that a valid transaction comes with a valid conflicting double spend */
+    public void setDoubleSpendRate(double rate) {
+        doubleSpendRate = rate;
+    }
+
+    /** Sets the probability that a valid transaction comes with a copy carrying a bad signature */
+    public void setBadSignatureRate(double rate) {
+        badSignatureRate = rate;
+    }
+
+    /** Sets the probability that a valid transaction comes with a copy paying a negative output */
+    public void setNegativeOutputRate(double rate) {
+        negativeOutputRate = rate;
+    }
+
+    /**
+     * Generates epoch number {@code epoch} of the sequence defined by the seed in memory. The
+     * starting pool is backed by a {@code PersistentUTXOStore}, so handlers can take snapshots of
+     * it for free.
+     */
+    public Epoch generate(int epoch, int numTxs, int fanIn, int fanOut, int chainDepth)
+            throws GeneralSecurityException {
+        final UTXOPool pool = UTXOPool.persistent();
+        final ArrayList<Transaction> txs = new ArrayList<Transaction>(numTxs);
+        try {
+            generate(epoch, numTxs, fanIn, fanOut, chainDepth, new Sink() {
+                public void utxo(UTXO utxo, Transaction.Output txOut) {
+                    pool.addUTXO(utxo, txOut);
+                }
+
+                public void transaction(Transaction tx) {
+                    txs.add(tx);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Epoch(pool, txs.toArray(new Transaction[txs.size()]));
+    }
+
+    /** Generates epoch number {@code epoch} of the sequence defined by the seed into {@code sink} */
+    public void generate(int epoch, int numTxs, int fanIn, int fanOut, int chainDepth, Sink sink)
+            throws GeneralSecurityException, IOException {
+        if (numTxs <= 0 || fanIn <= 0 || fanOut <= 0 || chainDepth <= 0)
+            throw new IllegalArgumentException("epoch shape must be positive");
+
+        Funding funding = new Funding(epoch);
+        long fundingNeeded = fundingNeeded(numTxs, fanIn, fanOut, chainDepth);
+        for (long f = 0; f * OUTPUTS_PER_ROOT < fundingNeeded; f++) {
+            Transaction root = funding.root(f);
+            for (int o = 0; o < root.numOutputs(); o++)
+                sink.utxo(new UTXO(root.getHash(), o), root.getOutput(o));
+        }
+
+        Random random = new Random(mix(seed, epoch, -1));
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        Window window = new Window(sink, random);
+        long nextFunding = 0;
+        int blockTxs = BLOCK_WIDTH * chainDepth;
+        for (int start = 0; start < numTxs; start += blockTxs) {
+            int txsInBlock = Math.min(blockTxs, numTxs - start);
+            int width = (txsInBlock + chainDepth - 1) / chainDepth;
+            ArrayList<Coin> previousLayer = new ArrayList<Coin>();
+            for (int made = 0; made < txsInBlock;) {
+                ArrayList<Coin> thisLayer = new ArrayList<Coin>();
+                shuffle(previousLayer, random);
+                for (int t = 0; t < width && made < txsInBlock; t++, made++) {
+                    Coin[] inputs = new Coin[fanIn];
+                    for (int i = 0; i < fanIn; i++) {
+                        if (!previousLayer.isEmpty())
+                            inputs[i] = previousLayer.remove(previousLayer.size() - 1);
+                        else
+                            inputs[i] = funding.coin(nextFunding++);
+                    }
+                    Transaction tx = buildTransaction(inputs, fanOut, random, signer, Fault.NONE);
+                    window.add(tx);
+                    for (int o = 0; o < tx.numOutputs(); o++) {
+                        Transaction.Output out = tx.getOutput(o);
+                        thisLayer.add(new Coin(tx.getHash(), o, out.value, keyIndex(out.address)));
+                    }
+                    addVariants(inputs, fanOut, random, signer, window);
+                }
+                previousLayer = thisLayer;
+            }
+        }
+        window.drain();
+    }
+
+    /** @return the number of funding outputs the layers of an epoch of this shape draw on */
+    static long fundingNeeded(int numTxs, int fanIn, int fanOut, int chainDepth) {
+        long needed = 0;
+        int blockTxs = BLOCK_WIDTH * chainDepth;
+        for (int start = 0; start < numTxs; start += blockTxs) {
+            int txsInBlock = Math.min(blockTxs, numTxs - start);
+            int width = (txsInBlock + chainDepth - 1) / chainDepth;
+            long available = 0;
+            for (int made = 0; made < txsInBlock; made += width) {
+                long layer = Math.min(width, txsInBlock - made);
+                needed += Math.max(0, layer * fanIn - available);
+                available = layer * fanOut;
+            }
+        }
+        return needed;
+    }
+
+    /** Adds the conflicting and invalid variants of a transaction spending {@code inputs} */
+    private void addVariants(Coin[] inputs, int fanOut, Random random, Signature signer, Window window)
+            throws GeneralSecurityException, IOException {
+        if (random.nextDouble() < doubleSpendRate) {
+            Coin[] subset = Arrays.copyOf(inputs, 1 + random.nextInt(inputs.length));
+            window.add(buildTransaction(subset, fanOut, random, signer, Fault.NONE));
+        }
+        if (random.nextDouble() < badSignatureRate)
+            window.add(buildTransaction(inputs, fanOut, random, signer, Fault.BAD_SIGNATURE));
+        if (random.nextDouble() < negativeOutputRate)
+            window.add(buildTransaction(inputs, fanOut, random, signer, Fault.NEGATIVE_OUTPUT));
+    }
+
+    /** Builds and signs a transaction spending {@code inputs} into {@code fanOut} outputs */
+    private Transaction buildTransaction(Coin[] inputs, int fanOut, Random random, Signature signer,
+            Fault fault) throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        long inputUnits = 0;
+        for (Coin in : inputs) {
+            tx.addInput(in.txHash, in.index);
+            inputUnits += Amounts.toUnits(in.value);
+        }
+        long feeUnits = 1 + inputUnits * random.nextInt(500) / 10000;
+        long perOutput = (inputUnits - feeUnits) / fanOut;
+        for (int o = 0; o < fanOut; o++)
+            tx.addOutput(Amounts.toCoins(perOutput), keys[random.nextInt(keys.length)].getPublic());
+        if (fault == Fault.NEGATIVE_OUTPUT) {
+            // same output sum, so only the negative value check rejects it
+            tx.getOutput(0).value = Amounts.toCoins(-perOutput);
+            tx.addOutput(Amounts.toCoins(2 * perOutput), keys[random.nextInt(keys.length)].getPublic());
+        }
+        for (int i = 0; i < inputs.length; i++)
+            tx.addSignature(sign(signer, keys[inputs[i].key].getPrivate(), tx.getRawDataToSign(i)), i);
+        if (fault == Fault.BAD_SIGNATURE) {
+            byte[] signature = tx.getInput(random.nextInt(inputs.length)).signature;
+            signature[random.nextInt(signature.length)] ^= 1 << random.nextInt(8);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    static byte[] sign(Signature signer, PrivateKey key, byte[] message) throws GeneralSecurityException {
+        signer.initSign(key);
+        signer.update(message);
+        return signer.sign();
+    }
+
+    /** Funding transactions of an epoch, each recomputed from the seed when its outputs are needed */
+    private final class Funding {
+        private final int epoch;
+        private long current = -1;
+        private Transaction root;
+
+        Funding(int epoch) {
+            this.epoch = epoch;
+        }
+
+        Transaction root(long f) {
+            if (f != current) {
+                Random random = new Random(mix(seed, epoch, f));
+                root = new Transaction();
+                root.addInput(longBytes(seed, epoch, f), 0);
+                for (int o = 0; o < OUTPUTS_PER_ROOT; o++)
+                    root.addOutput(10 + random.nextInt(90), keys[random.nextInt(keys.length)].getPublic());
+                root.finalize();
+                current = f;
+            }
+            return root;
+        }
+
+        Coin coin(long k) {
+            Transaction tx = root(k / OUTPUTS_PER_ROOT);
+            int index = (int) (k % OUTPUTS_PER_ROOT);
+            Transaction.Output out = tx.getOutput(index);
+            return new Coin(tx.getHash(), index, out.value, keyIndex(out.address));
+        }
+    }
+
+    /** Emits transactions in a random order within a bounded window */
+    private static final class Window {
+        private final Sink sink;
+        private final Random random;
+        private final ArrayList<Transaction> buffer = new ArrayList<Transaction>();
+
+        Window(Sink sink, Random random) {
+            this.sink = sink;
+            this.random = random;
+        }
+
+        void add(Transaction tx) throws IOException {
+            if (buffer.size() == SHUFFLE_WINDOW)
+                emit(random.nextInt(buffer.size()));
+            buffer.add(tx);
+        }
+
+        void drain() throws IOException {
+            while (!buffer.isEmpty())
+                emit(random.nextInt(buffer.size()));
+        }
+
+        private void emit(int i) throws IOException {
+            Transaction tx = buffer.get(i);
+            buffer.set(i, buffer.get(buffer.size() - 1));
+            buffer.remove(buffer.size() - 1);
+            sink.transaction(tx);
+        }
+    }
+
+    private static long mix(long a, long b, long c) {
+        long h = a * 0x9e3779b97f4a7c15L + b;
+        h = (h ^ (h >>> 31)) * 0xbf58476d1ce4e5b9L + c;
+        return h ^ (h >>> 29);
+    }
+
+    /** @return a 32-byte value unique to {@code (a, b, c)}, used as a funding input's hash */
+    static byte[] longBytes(long a, long b, long c) {
+        byte[] bytes = new byte[32];
+        long[] words = { a, b, c, 0x46554e44L }; // "FUND"
+        for (int w = 0; w < words.length; w++) {
+            for (int i = 0; i < 8; i++)
+                bytes[w * 8 + i] = (byte) (words[w] >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    static <T> void shuffle(ArrayList<T> list, Random random) {
+        for (int i = list.size() - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            T t = list.get(i);
+            list.set(i, list.get(j));
+            list.set(j, t);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+
+/**
+ * The default-package side of the benchmarks in {@code bench}: builds the seeded workload and
+ * hands out each benchmarked operation. Two epochs are generated: one whose transactions are all
+ * valid against its pool, for the single-transaction operations, and one with chains of
+ * {@code depth} for the handlers to resolve.
+ */
+public class JmhWorkload implements bench.Workload {
+
+    private WorkloadGenerator.Epoch flat;
+    private WorkloadGenerator.Epoch chained;
+    private Transaction[] txs;
+    private UTXO[] utxos;
+
+    public void setUp(long seed, int numKeys, int keyBits, int numTxs, int fanIn, int fanOut, int depth)
+            throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator(seed, numKeys, keyBits);
+        flat = generator.generate(0, numTxs, fanIn, fanOut, 1);
+        chained = generator.generate(1, numTxs, fanIn, fanOut, depth);
+        txs = flat.txs;
+        // fresh instances, so lookups hash and compare instead of hitting identity
+        utxos = flat.pool.getAllUTXO().toArray(new UTXO[0]);
+        for (int u = 0; u < utxos.length; u++)
+            utxos[u] = new UTXO(utxos[u].getTxHash(), utxos[u].getIndex());
+    }
+
+    public IntToLongFunction op(String name) {
+        final int n = txs.length;
+        switch (name) {
+        case "crypto.verifySignature":
+            return i -> {
+                Transaction tx = txs[Math.floorMod(i, n)];
+                return Crypto.verifySignature(address(tx), tx.getRawDataToSign(0), tx.getInput(0).signature)
+                        ? 1 : 0;
+            };
+        case "signatureCache.verifySignature": {
+            SignatureCache cache = new SignatureCache(2 * n);
+            return i -> {
+                Transaction tx = txs[Math.floorMod(i, n)];
+                return cache.verifySignature(address(tx), tx.getRawDataToSign(0), tx.getInput(0).signature)
+                        ? 1 : 0;
+            };
+        }
+        case "transaction.finalize":
+            return i -> {
+                Transaction tx = txs[Math.floorMod(i, n)];
+                tx.finalize();
+                return tx.getHash().length;
+            };
+        case "transaction.getRawDataToSign":
+            return i -> {
+                Transaction tx = txs[Math.floorMod(i, n)];
+                return tx.getRawDataToSign(Math.floorMod(i, tx.numInputs())).length;
+            };
+        case "transaction.getRawDataToSign[reference]":
+            checkRawDataToSign();
+            return i -> {
+                Transaction tx = txs[Math.floorMod(i, n)];
+                return referenceRawDataToSign(tx, Math.floorMod(i, tx.numInputs())).length;
+            };
+        case "transaction.writeRawDataToSign": {
+            checkRawDataToSign();
+            int length = 0;
+            for (Transaction tx : txs)
+                length = Math.max(length, tx.getRawDataToSignLength(0));
+            ByteBuffer scratch = ByteBuffer.allocate(length);
+            return i -> {
+                Transaction tx = txs[Math.floorMod(i, n)];
+                scratch.clear();
+                return tx.writeRawDataToSign(Math.floorMod(i, tx.numInputs()), scratch);
+            };
+        }
+        case "transaction.getRawTx":
+            return i -> txs[Math.floorMod(i, n)].getRawTx().length;
+        case "utxoPool.getTxOutput[hashMap]":
+            return lookups(new UTXOPool());
+        case "utxoPool.getTxOutput[persistent]":
+            return lookups(UTXOPool.persistent());
+        case "utxoPool.getTxOutput[offHeap]":
+            return lookups(UTXOPool.offHeap(utxos.length));
+        case "utxoPool.getTxOutput[concurrent]":
+            return lookups(UTXOPool.concurrent(16));
+        case "txHandler.isValidTx[uncached]": {
+            TxHandler handler = new TxHandler(flat.pool, new SignatureCache(1));
+            return i -> handler.isValidTx(txs[Math.floorMod(i, n)]) ? 1 : 0;
+        }
+        case "txHandler.isValidTx[cached]": {
+            TxHandler handler = new TxHandler(flat.pool, new SignatureCache(2 * numInputs(txs)));
+            return i -> handler.isValidTx(txs[Math.floorMod(i, n)]) ? 1 : 0;
+        }
+        case "txHandler.handleTxs": {
+            SignatureCache cache = new SignatureCache(2 * numInputs(chained.txs));
+            return i -> new TxHandler(chained.pool, cache).handleTxs(chained.txs).length;
+        }
+        case "maxFeeTxHandler.handleTxs": {
+            SignatureCache cache = new SignatureCache(2 * numInputs(chained.txs));
+            return i -> new MaxFeeTxHandler(chained.pool, cache).handleTxs(chained.txs).length;
+        }
+        default:
+            throw new IllegalArgumentException("no operation " + name);
+        }
+    }
+
+    /** @return the address of the output claimed by the first input of {@code tx} */
+    private java.security.PublicKey address(Transaction tx) {
+        Transaction.Input in = tx.getInput(0);
+        return flat.pool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex)).address;
+    }
+
+    /** @return lookups of every UTXO of the flat epoch's pool, copied into {@code pool} */
+    private IntToLongFunction lookups(UTXOPool pool) {
+        for (UTXO utxo : utxos)
+            pool.addUTXO(utxo, flat.pool.getTxOutput(utxo));
+        return i -> pool.getTxOutput(utxos[Math.floorMod(i, utxos.length)]) == null ? 0 : 1;
+    }
+
+    /**
+     * @throws IllegalStateException if {@code getRawDataToSign} or {@code writeRawDataToSign}
+     *         disagrees with the reference serializer on some input
+     */
+    private void checkRawDataToSign() {
+        for (Transaction tx : txs) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                byte[] expected = referenceRawDataToSign(tx, i);
+                if (!Arrays.equals(expected, tx.getRawDataToSign(i)))
+                    throw new IllegalStateException("getRawDataToSign(" + i + ") differs from reference");
+                ByteBuffer b = ByteBuffer.allocate(tx.getRawDataToSignLength(i));
+                tx.writeRawDataToSign(i, b);
+                if (!Arrays.equals(expected, b.array()))
+                    throw new IllegalStateException("writeRawDataToSign(" + i + ") differs from reference");
+            }
+        }
+    }
+
+    /** The original boxed serializer, kept verbatim as the compatibility and allocation baseline */
+    static byte[] referenceRawDataToSign(Transaction tx, int index) {
+        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        if (index > tx.numInputs())
+            return null;
+        Transaction.Input in = tx.getInput(index);
+        byte[] prevTxHash = in.prevTxHash;
+        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+        b.putInt(in.outputIndex);
+        byte[] outputIndex = b.array();
+        if (prevTxHash != null)
+            for (int i = 0; i < prevTxHash.length; i++)
+                sigData.add(prevTxHash[i]);
+        for (int i = 0; i < outputIndex.length; i++)
+            sigData.add(outputIndex[i]);
+        for (Transaction.Output op : tx.getOutputs()) {
+            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
+            bo.putDouble(op.value);
+            byte[] value = bo.array();
+            byte[] addressBytes = op.address.getEncoded();
+            for (int i = 0; i < value.length; i++)
+                sigData.add(value[i]);
+
+            for (int i = 0; i < addressBytes.length; i++)
+                sigData.add(addressBytes[i]);
+        }
+        byte[] sigD = new byte[sigData.size()];
+        int i = 0;
+        for (Byte sb : sigData)
+            sigD[i++] = sb;
+        return sigD;
+    }
+
+    private static int numInputs(Transaction[] txs) {
+        int count = 0;
+        for (Transaction tx : txs)
+            count += tx.numInputs();
+        return count;
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToLongFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allocation benchmarks for the payload signed by each input: the boxed reference serializer
+ * {@code Transaction.getRawDataToSign} used to ship with, and the caller-supplied
+ * {@code ByteBuffer} path of {@code writeRawDataToSign}. The pre-sized {@code byte[]} path is
+ * {@code ScroogeBenchmarks.transactionGetRawDataToSign}, on the same transactions, so all three
+ * are compared with:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc [-p fanIn=8 -p fanOut=8] RawDataToSign
+ * </pre>
+ *
+ * Setting up checks that every path produces the same bytes for every input.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawDataToSignBenchmark {
+
+    /** The serializers, one set per thread since the buffer path writes into a scratch buffer */
+    @State(Scope.Thread)
+    public static class Ops {
+        IntToLongFunction reference;
+        IntToLongFunction writeRawDataToSign;
+
+        @Setup
+        public void setUp(ScroogeBenchmarks.Epochs epochs) {
+            reference = epochs.workload.op("transaction.getRawDataToSign[reference]");
+            writeRawDataToSign = epochs.workload.op("transaction.writeRawDataToSign");
+        }
+    }
+
+    @Benchmark
+    public long reference(Ops ops, ScroogeBenchmarks.Calls calls) {
+        return ops.reference.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long writeRawDataToSign(Ops ops, ScroogeBenchmarks.Calls calls) {
+        return ops.writeRawDataToSign.applyAsLong(calls.i++);
+    }
+}
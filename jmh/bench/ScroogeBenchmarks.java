@@ -0,0 +1,163 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToLongFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the hot paths of transaction handling: signature checks, transaction hashing
+ * and serialization, UTXO pool lookups on every store, single-transaction validation and
+ * whole-epoch handling by both handlers. Workloads come from a seeded {@code WorkloadGenerator}, so
+ * runs with the same parameters measure the same transactions.
+ *
+ * Every benchmark reports throughput and sampled latency percentiles; run with {@code -prof gc}
+ * for the allocation rate. Build and run with:
+ *
+ * <pre>
+ * mvn -B -P jmh package
+ * java -jar target/benchmarks.jar -prof gc [-p txs=1000 -p depth=4 ...] [regexp]
+ * </pre>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScroogeBenchmarks {
+
+    /** The generated keys and epochs, shaped by the parameters */
+    @State(Scope.Benchmark)
+    public static class Epochs {
+        @Param("1")
+        public long seed;
+        @Param("16")
+        public int keys;
+        @Param("2048")
+        public int keyBits;
+        @Param("1000")
+        public int txs;
+        @Param("2")
+        public int fanIn;
+        @Param("2")
+        public int fanOut;
+        @Param("4")
+        public int depth;
+
+        Workload workload;
+
+        @Setup
+        public void setUp() throws Exception {
+            workload = (Workload) Class.forName("JmhWorkload").getDeclaredConstructor().newInstance();
+            workload.setUp(seed, keys, keyBits, txs, fanIn, fanOut, depth);
+        }
+    }
+
+    /** The calls made so far by one thread, so each call picks the next transaction */
+    @State(Scope.Thread)
+    public static class Calls {
+        int i;
+    }
+
+    /** A copy of the starting pool in one kind of store */
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({ "hashMap", "persistent", "offHeap", "concurrent" })
+        public String store;
+
+        IntToLongFunction getTxOutput;
+
+        @Setup
+        public void setUp(Epochs epochs) {
+            getTxOutput = epochs.workload.op("utxoPool.getTxOutput[" + store + "]");
+        }
+    }
+
+    /** The single-operation benchmarks, looked up once per trial */
+    @State(Scope.Benchmark)
+    public static class Ops {
+        IntToLongFunction verifySignature;
+        IntToLongFunction cachedVerifySignature;
+        IntToLongFunction finalizeTx;
+        IntToLongFunction getRawDataToSign;
+        IntToLongFunction getRawTx;
+        IntToLongFunction uncachedIsValidTx;
+        IntToLongFunction cachedIsValidTx;
+        IntToLongFunction txHandlerHandleTxs;
+        IntToLongFunction maxFeeTxHandlerHandleTxs;
+
+        @Setup
+        public void setUp(Epochs epochs) {
+            Workload w = epochs.workload;
+            verifySignature = w.op("crypto.verifySignature");
+            cachedVerifySignature = w.op("signatureCache.verifySignature");
+            finalizeTx = w.op("transaction.finalize");
+            getRawDataToSign = w.op("transaction.getRawDataToSign");
+            getRawTx = w.op("transaction.getRawTx");
+            uncachedIsValidTx = w.op("txHandler.isValidTx[uncached]");
+            cachedIsValidTx = w.op("txHandler.isValidTx[cached]");
+            txHandlerHandleTxs = w.op("txHandler.handleTxs");
+            maxFeeTxHandlerHandleTxs = w.op("maxFeeTxHandler.handleTxs");
+        }
+    }
+
+    @Benchmark
+    public long cryptoVerifySignature(Ops ops, Calls calls) {
+        return ops.verifySignature.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long signatureCacheVerifySignature(Ops ops, Calls calls) {
+        return ops.cachedVerifySignature.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long transactionFinalize(Ops ops, Calls calls) {
+        return ops.finalizeTx.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long transactionGetRawDataToSign(Ops ops, Calls calls) {
+        return ops.getRawDataToSign.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long transactionGetRawTx(Ops ops, Calls calls) {
+        return ops.getRawTx.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long utxoPoolGetTxOutput(Pool pool, Calls calls) {
+        return pool.getTxOutput.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long txHandlerIsValidTxUncached(Ops ops, Calls calls) {
+        return ops.uncachedIsValidTx.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long txHandlerIsValidTxCached(Ops ops, Calls calls) {
+        return ops.cachedIsValidTx.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long txHandlerHandleTxs(Ops ops, Calls calls) {
+        return ops.txHandlerHandleTxs.applyAsLong(calls.i++);
+    }
+
+    @Benchmark
+    public long maxFeeTxHandlerHandleTxs(Ops ops, Calls calls) {
+        return ops.maxFeeTxHandlerHandleTxs.applyAsLong(calls.i++);
+    }
+}
@@ -0,0 +1,26 @@
+package bench;
+
+import java.util.function.IntToLongFunction;
+
+/**
+ * The operations {@code ScroogeBenchmarks} measures. JMH refuses benchmark classes in the default
+ * package and a named package cannot see the default-package classes of this repository, so the
+ * operations are implemented on this side of the boundary by the default-package
+ * {@code JmhWorkload} and reached through this interface.
+ */
+public interface Workload {
+
+    /**
+     * Generates the seeded keys and epochs every operation runs on; see {@code WorkloadGenerator}
+     */
+    void setUp(long seed, int numKeys, int keyBits, int numTxs, int fanIn, int fanOut, int depth)
+            throws Exception;
+
+    /**
+     * @return the operation called {@code name}; its argument counts the calls and picks the
+     *         transaction or UTXO, wrapping around to negative values on long runs, and its result
+     *         only keeps the work alive
+     * @throws IllegalArgumentException if there is no such operation
+     */
+    IntToLongFunction op(String name);
+}
@@ -0,0 +1,78 @@
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks {@code FeeRateSelector} against {@code ExactFeeSolver} on small seeded epochs with double
+ * spends and chains, over several block size limits. Every block must be mutually valid, fit the
+ * limit and pay no more than the exact optimum under the same limit; with no limit, the exact
+ * solver must also do at least as well as greedy.
+ */
+class FeeRateSelectorTest {
+
+    private static final int EPOCHS = 30;
+    private static final int TXS = 10;
+    private static final double[] BUDGETS = { 0.2, 0.4, 0.6, 0.8, 1.0 };
+
+    @Test
+    void staysWithinLimitAndBelowExactOptimum() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator(7, 6, 512);
+        generator.setDoubleSpendRate(0.3);
+        generator.setBadSignatureRate(0.05);
+
+        for (int e = 0; e < EPOCHS; e++) {
+            WorkloadGenerator.Epoch epoch = generator.generate(e, TXS, 1 + e % 3, 2, 1 + e % 3);
+            long totalBytes = size(epoch.txs);
+
+            for (double share : BUDGETS) {
+                long maxBytes = share == 1.0 ? Long.MAX_VALUE : (long) (share * totalBytes);
+                String where = "epoch " + e + " budget " + share + ": ";
+
+                MaxFeeTxHandler rate = new MaxFeeTxHandler(epoch.pool);
+                rate.setMode(MaxFeeTxHandler.Mode.FEE_RATE);
+                rate.getFeeRateSelector().setMaxBytes(maxBytes);
+                Transaction[] rateTxs = rate.handleTxs(epoch.txs);
+
+                MaxFeeTxHandler exact = new MaxFeeTxHandler(epoch.pool);
+                exact.setMode(MaxFeeTxHandler.Mode.EXACT);
+                exact.getExactSolver().setMaxBytes(maxBytes);
+                exact.getExactSolver().setTimeBudget(10_000);
+                Transaction[] exactTxs = exact.handleTxs(epoch.txs);
+                assertTrue(exact.getExactSolver().isOptimal(), where + "exact solver did not finish");
+
+                long rateFee = totalFee(epoch.pool, rateTxs, where);
+                long exactFee = totalFee(epoch.pool, exactTxs, where);
+                assertTrue(size(rateTxs) <= maxBytes, where + "fee rate block over the size limit");
+                assertTrue(size(exactTxs) <= maxBytes, where + "exact block over the size limit");
+                assertTrue(rateFee <= exactFee, where + "fee rate " + rateFee + " beats exact " + exactFee);
+                if (maxBytes == Long.MAX_VALUE) {
+                    Transaction[] greedyTxs = new MaxFeeTxHandler(epoch.pool).handleTxs(epoch.txs);
+                    long greedyFee = totalFee(epoch.pool, greedyTxs, where);
+                    assertTrue(greedyFee <= exactFee, where + "greedy " + greedyFee + " beats exact " + exactFee);
+                }
+            }
+        }
+    }
+
+    /** @return the total fee of applying {@code txs} in order to a copy of {@code pool} */
+    private static long totalFee(UTXOPool pool, Transaction[] txs, String where) {
+        TxHandler handler = new TxHandler(pool);
+        UTXOPool current = handler.getUTXOPool();
+        long fee = 0;
+        for (Transaction tx : txs) {
+            assertTrue(handler.isValidTx(tx), where + "selection is not mutually valid");
+            for (Transaction.Input in : tx.getInputs())
+                fee += Amounts.toUnits(current.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex)).value);
+            fee -= Amounts.sum(tx.getOutputs());
+            current.applyTx(tx, null);
+        }
+        return fee;
+    }
+
+    private static long size(Transaction[] txs) {
+        long bytes = 0;
+        for (Transaction tx : txs)
+            bytes += TxCodec.encodedLength(tx);
+        return bytes;
+    }
+}
@@ -0,0 +1,228 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recovery of {@code MappedUTXOStore} after the process dies at an awkward moment. A crash is
+ * simulated by abandoning a store without closing it, so nothing is checkpointed on the way out,
+ * and then editing its files the way the crash would have left them before reopening.
+ */
+class MappedUTXOStoreTest {
+
+    private static final Transaction OWNER = new Transaction();
+
+    /** End of the header and the index of 16 buckets, where the append region starts */
+    private static final int INDEX_END = 64 + 8 * 16;
+
+    private static PublicKey[] keys;
+
+    @TempDir
+    Path dir;
+
+    /** What the store is expected to hold, in insertion order */
+    private final LinkedHashMap<UTXO, Transaction.Output> expected = new LinkedHashMap<>();
+
+    @BeforeAll
+    static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        keys = new PublicKey[3];
+        for (int k = 0; k < keys.length; k++)
+            keys[k] = generator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    void reopenWithoutCloseKeepsSyncedChanges() throws IOException {
+        Path path = dir.resolve("utxo");
+        MappedUTXOStore store = MappedUTXOStore.open(path, 16, 8, false);
+        for (int i = 0; i < 20; i++)
+            put(store, i);
+        remove(store, 3);
+        remove(store, 17);
+        put(store, 5, 7.5);
+        store.sync();
+        // abandoned: the first changes were checkpointed, the rest only reached the WAL
+
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 8, false)) {
+            assertHolds(reopened);
+            put(reopened, 20);
+        }
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 8, false)) {
+            assertHolds(reopened);
+        }
+    }
+
+    @Test
+    void tornWalTailIsDropped() throws IOException {
+        Path path = dir.resolve("utxo");
+        MappedUTXOStore store = MappedUTXOStore.open(path, 16, 1000, true);
+        for (int i = 0; i < 5; i++)
+            put(store, i);
+        store.put(utxo(5), output(5));
+        Path wal = Paths.get(path + ".wal");
+        // the last entry was only partly written when the process died
+        truncate(wal, Files.size(wal) - 10);
+
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 1000, true)) {
+            assertHolds(reopened);
+            // new entries go after the last whole one, not after the torn bytes
+            put(reopened, 6);
+            reopened.sync();
+        }
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 1000, true)) {
+            assertHolds(reopened);
+        }
+    }
+
+    @Test
+    void corruptWalTailIsDropped() throws IOException {
+        Path path = dir.resolve("utxo");
+        MappedUTXOStore store = MappedUTXOStore.open(path, 16, 1000, true);
+        for (int i = 0; i < 5; i++)
+            put(store, i);
+        store.put(utxo(5), output(5));
+        Path wal = Paths.get(path + ".wal");
+        // the last entry has its full length, but some of its bytes never made it to disk
+        byte[] bytes = Files.readAllBytes(wal);
+        bytes[bytes.length - 20] ^= 0x40;
+        Files.write(wal, bytes);
+
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 1000, true)) {
+            assertHolds(reopened);
+        }
+    }
+
+    @Test
+    void crashBeforeWalTruncationReplaysNothingTwice() throws IOException {
+        Path path = dir.resolve("utxo");
+        MappedUTXOStore store = MappedUTXOStore.open(path, 16, 1000, false);
+        for (int i = 0; i < 10; i++)
+            put(store, i);
+        remove(store, 4);
+        put(store, 2, 0.125);
+        store.sync();
+        Path wal = Paths.get(path + ".wal");
+        byte[] log = Files.readAllBytes(wal);
+        store.checkpoint();
+        // the checkpoint reached the data file, but the WAL it covers was never truncated
+        Files.write(wal, log);
+
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 1000, false)) {
+            assertHolds(reopened);
+            put(reopened, 10);
+            remove(reopened, 0);
+        }
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 1000, false)) {
+            assertHolds(reopened);
+        }
+    }
+
+    @Test
+    void completeCheckpointJournalIsApplied() throws IOException {
+        Path path = dir.resolve("utxo");
+        MappedUTXOStore store = MappedUTXOStore.open(path, 16, 1000, false);
+        for (int i = 0; i < 6; i++)
+            put(store, i);
+        store.checkpoint();
+        for (int i = 6; i < 12; i++)
+            put(store, i);
+        remove(store, 1);
+        store.sync();
+        Path wal = Paths.get(path + ".wal");
+        Path journal = Paths.get(path + ".ckpt");
+        byte[] data = Files.readAllBytes(path);
+        byte[] log = Files.readAllBytes(wal);
+        // a second name keeps the journal the checkpoint writes and then deletes
+        Path saved = dir.resolve("saved.ckpt");
+        Files.createFile(journal);
+        Files.createLink(saved, journal);
+        store.checkpoint();
+        // the data file was being written from the journal when the process died: its header and
+        // bucket index are new, so the WAL is skipped on replay, but its records are not
+        byte[] torn = Files.readAllBytes(path);
+        System.arraycopy(data, INDEX_END, torn, INDEX_END, Math.min(data.length, torn.length) - INDEX_END);
+        Files.write(path, torn);
+        Files.write(wal, log);
+        Files.copy(saved, journal);
+
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 1000, false)) {
+            assertFalse(Files.exists(journal));
+            assertHolds(reopened);
+        }
+    }
+
+    @Test
+    void incompleteCheckpointJournalIsDiscarded() throws IOException {
+        Path path = dir.resolve("utxo");
+        MappedUTXOStore store = MappedUTXOStore.open(path, 16, 1000, false);
+        for (int i = 0; i < 6; i++)
+            put(store, i);
+        store.checkpoint();
+        put(store, 6);
+        store.sync();
+        Path journal = Paths.get(path + ".ckpt");
+        // the journal of the next checkpoint was being written when the process died
+        Files.write(journal, new byte[] { 0x43, 0x4b, 0x50, 0x54, 0, 0, 0, 0, 0, 0, 1 });
+
+        try (MappedUTXOStore reopened = MappedUTXOStore.open(path, 16, 1000, false)) {
+            assertFalse(Files.exists(journal));
+            assertHolds(reopened);
+        }
+    }
+
+    private void put(MappedUTXOStore store, int i) {
+        put(store, i, output(i).value);
+    }
+
+    private void put(MappedUTXOStore store, int i, double value) {
+        Transaction.Output output = OWNER.new Output(value, keys[i % keys.length]);
+        store.put(utxo(i), output);
+        expected.put(utxo(i), output);
+    }
+
+    private void remove(MappedUTXOStore store, int i) {
+        store.remove(utxo(i));
+        expected.remove(utxo(i));
+    }
+
+    private void assertHolds(MappedUTXOStore store) {
+        assertEquals(expected.size(), store.size());
+        assertEquals(expected.keySet(), new HashSet<>(store.keys()));
+        for (Map.Entry<UTXO, Transaction.Output> e : expected.entrySet()) {
+            Transaction.Output stored = store.get(e.getKey());
+            assertNotNull(stored, "missing " + e.getKey());
+            assertEquals(e.getValue().value, stored.value);
+            assertEquals(e.getValue().address, stored.address);
+        }
+    }
+
+    private static UTXO utxo(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) i;
+        hash[31] = (byte) (i * 31);
+        return new UTXO(hash, i % 3);
+    }
+
+    private static Transaction.Output output(int i) {
+        return OWNER.new Output(1 + i * 0.25, keys[i % keys.length]);
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        Files.write(file, Arrays.copyOf(Files.readAllBytes(file), (int) size));
+    }
+}